@@ -0,0 +1,92 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+
+/**
+ * One full {@link ClientShim} loop iteration (decode, dispatch, reply) against
+ * a {@link StubRawClient}, so the number is all shim and no Riak. The reply
+ * goes to a local mbox and is taken off again so the queue doesn't grow.
+ * <p>
+ * Starting the {@link OtpNode} needs epmd running (<code>epmd -daemon</code>).
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ClientShimBenchmark {
+
+    @Param({ "100", "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    private OtpNode node;
+    private OtpMbox sink;
+    private ClientShim shim;
+    private byte[] get;
+    private byte[] put;
+    private byte[] update;
+
+    @Setup public void setup() throws IOException {
+        node = new OtpNode("bench_shim_jmh");
+        sink = node.createMbox();
+        shim = new ClientShim(node.createMbox(), new StubRawClient(size));
+
+        final byte[] bucket = "test".getBytes();
+        final byte[] key = new byte[] { 0, 0, 0, 0, 0, 0, 0, 42 };
+        get = Messages.request(sink.self(), Op.GET, Messages.args(bucket, key, null));
+        put = Messages.request(sink.self(), Op.PUT, Messages.args(bucket, key, new byte[size]));
+        update = Messages.request(sink.self(), Op.UPDATE, Messages.args(bucket, key, new byte[size]));
+    }
+
+    @TearDown public void tearDown() {
+        node.close();
+    }
+
+    @Benchmark public OtpErlangObject get() throws Exception {
+        return iteration(get);
+    }
+
+    @Benchmark public OtpErlangObject put() throws Exception {
+        return iteration(put);
+    }
+
+    @Benchmark public OtpErlangObject update() throws Exception {
+        return iteration(update);
+    }
+
+    private OtpErlangObject iteration(byte[] request) throws Exception {
+        shim.handle(new OtpInputStream(request));
+        return sink.receive();
+    }
+}
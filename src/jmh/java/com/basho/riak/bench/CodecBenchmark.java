@@ -0,0 +1,84 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+
+/**
+ * The shim's own per message decode/encode work, no mailbox and no client
+ * 
+ * @author russell
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CodecBenchmark {
+
+    @Param({ "100", "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    private byte[] getArgs;
+    private byte[] putArgs;
+    private final Args args = new Args();
+    private OtpErlangTuple hostTuple;
+
+    @Setup public void setup() {
+        final byte[] bucket = "test".getBytes();
+        final byte[] key = new byte[Math.min(size, 1024)];
+        getArgs = Messages.encode(Messages.args(bucket, key, null));
+        putArgs = Messages.encode(Messages.args(bucket, key, new byte[size]));
+        hostTuple = new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangLong(127), new OtpErlangLong(0),
+                                                              new OtpErlangLong(0), new OtpErlangLong(1) });
+    }
+
+    @Benchmark public Args decodeGet() throws OtpErlangDecodeException {
+        return args.decode(Op.GET, new OtpInputStream(getArgs));
+    }
+
+    @Benchmark public Args decodePut() throws OtpErlangDecodeException {
+        return args.decode(Op.PUT, new OtpInputStream(putArgs));
+    }
+
+    @Benchmark public String decodeGetAndEncodeKey() throws OtpErlangDecodeException {
+        return args.decode(Op.GET, new OtpInputStream(getArgs)).getKey();
+    }
+
+    @Benchmark public Op opFromString() {
+        return Op.fromString("create_update");
+    }
+
+    @Benchmark public OtpErlangObject reply() {
+        return OtpMessageHelper.reply("ok", "found");
+    }
+
+    @Benchmark public String getHost() {
+        return Factory.getHost(hostTuple);
+    }
+}
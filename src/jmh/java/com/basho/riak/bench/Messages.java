@@ -0,0 +1,76 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * Builds request messages the way they arrive off the wire from basho_bench
+ * 
+ * @author russell
+ * 
+ */
+public class Messages {
+
+    private static final int VERSION = 131;
+
+    /**
+     * @param value
+     *            may be null for ops that don't carry one
+     * @return a basho_bench args proplist
+     */
+    public static OtpErlangList args(byte[] bucket, byte[] key, byte[] value) {
+        OtpErlangObject[] args = new OtpErlangObject[value == null ? 3 : 5];
+        args[0] = arg("bucket", new OtpErlangBinary(bucket));
+        args[1] = arg("key", new OtpErlangBinary(key));
+        args[2] = arg("r", new OtpErlangLong(2));
+
+        if (value != null) {
+            args[3] = arg("value", new OtpErlangBinary(value));
+            args[4] = arg("w", new OtpErlangLong(2));
+        }
+        return new OtpErlangList(args);
+    }
+
+    /**
+     * @return the external format bytes of <code>{From, {Op, Args}}</code>
+     *         with the version tag, as a shim's mailbox receives them
+     */
+    public static byte[] request(OtpErlangPid from, Op op, OtpErlangList args) {
+        OtpErlangTuple payload = new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom(op.getName()), args });
+        return encode(new OtpErlangTuple(new OtpErlangObject[] { from, payload }));
+    }
+
+    /**
+     * @return the external format bytes of <code>term</code> with the version
+     *         tag
+     */
+    public static byte[] encode(OtpErlangObject term) {
+        OtpOutputStream out = new OtpOutputStream();
+        out.write1(VERSION);
+        term.encode(out);
+        return out.toByteArray();
+    }
+
+    private static OtpErlangTuple arg(String name, OtpErlangObject value) {
+        return new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom(name), value });
+    }
+}
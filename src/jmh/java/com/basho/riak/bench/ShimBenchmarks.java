@@ -0,0 +1,41 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the shim benchmarks with the gc profiler on, so every result has
+ * ops/s and allocation per op (<code>gc.alloc.rate.norm</code>). Any JMH
+ * command line options are passed through, eg
+ * <code>java -jar target/benchmarks.jar -p size=10000 ClientShim</code>
+ * 
+ * @author russell
+ * 
+ */
+public class ShimBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        try {
+            new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build()).run();
+        } catch (RunnerException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.basho.riak.client.IRiakObject;
+import com.basho.riak.client.bucket.BucketProperties;
+import com.basho.riak.client.builders.RiakObjectBuilder;
+import com.basho.riak.client.query.MapReduceResult;
+import com.basho.riak.client.query.NodeStats;
+import com.basho.riak.client.query.WalkResult;
+import com.basho.riak.client.raw.DeleteMeta;
+import com.basho.riak.client.raw.FetchMeta;
+import com.basho.riak.client.raw.RawClient;
+import com.basho.riak.client.raw.RiakResponse;
+import com.basho.riak.client.raw.StoreMeta;
+import com.basho.riak.client.raw.Transport;
+import com.basho.riak.client.raw.query.LinkWalkSpec;
+import com.basho.riak.client.raw.query.MapReduceSpec;
+import com.basho.riak.client.raw.query.indexes.IndexQuery;
+
+/**
+ * A {@link RawClient} that does no I/O at all. Every fetch finds the same
+ * object, every store and delete succeeds, so a benchmark measures only the
+ * shim.
+ * 
+ * @author russell
+ * 
+ */
+public class StubRawClient implements RawClient {
+
+    private static final byte[] VCLOCK = new byte[] { 'v', 'c', 'l', 'o', 'c', 'k' };
+
+    private final RiakResponse found;
+
+    /**
+     * @param valueSize
+     *            the size of the value every fetch returns
+     */
+    public StubRawClient(int valueSize) {
+        IRiakObject o = RiakObjectBuilder.newBuilder("b", "k").withValue(new byte[valueSize]).withVClock(VCLOCK).build();
+        this.found = new RiakResponse(VCLOCK, new IRiakObject[] { o });
+    }
+
+    public RiakResponse head(String bucket, String key, FetchMeta fetchMeta) {
+        return found;
+    }
+
+    public RiakResponse fetch(String bucket, String key) {
+        return found;
+    }
+
+    public RiakResponse fetch(String bucket, String key, int readQuorum) {
+        return found;
+    }
+
+    public RiakResponse fetch(String bucket, String key, FetchMeta fetchMeta) {
+        return found;
+    }
+
+    public RiakResponse store(IRiakObject object, StoreMeta storeMeta) {
+        return RiakResponse.empty();
+    }
+
+    public void store(IRiakObject object) {}
+
+    public void delete(String bucket, String key) {}
+
+    public void delete(String bucket, String key, int deleteQuorum) {}
+
+    public void delete(String bucket, String key, DeleteMeta deleteMeta) {}
+
+    public Set<String> listBuckets() {
+        return Collections.emptySet();
+    }
+
+    public BucketProperties fetchBucket(String bucketName) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void updateBucket(String name, BucketProperties bucketProperties) {}
+
+    public Iterable<String> listKeys(String bucketName) {
+        return Collections.emptyList();
+    }
+
+    public WalkResult linkWalk(LinkWalkSpec linkWalkSpec) {
+        throw new UnsupportedOperationException();
+    }
+
+    public MapReduceResult mapReduce(MapReduceSpec spec) {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] generateAndSetClientId() {
+        return VCLOCK;
+    }
+
+    public void setClientId(byte[] clientId) {}
+
+    public byte[] getClientId() {
+        return VCLOCK;
+    }
+
+    public void ping() {}
+
+    public List<String> fetchIndex(IndexQuery indexQuery) {
+        return Collections.emptyList();
+    }
+
+    public Transport getTransport() {
+        return Transport.PB;
+    }
+
+    public void shutdown() {}
+
+    public NodeStats stats() {
+        throw new UnsupportedOperationException();
+    }
+}
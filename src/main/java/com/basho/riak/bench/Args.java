@@ -0,0 +1,380 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpInputStream;
+
+/**
+ * The arguments of a single key operation. A mutable holder, owned by one
+ * {@link ClientShim} (or one of its pipeline threads) and re-filled by
+ * {@link #decode(Op, OtpInputStream)} for every message, so the steady state
+ * allocates next to nothing.
+ * <p>
+ * The encoded bucket is cached across messages (it rarely changes) and the
+ * encoded key is computed at most once per message, both with the holder's
+ * {@link KeyEncoding}.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class Args {
+
+    private enum Name {
+        BUCKET, KEY, VALUE, R, W, DW, SEED, TIMEOUT, DEADLINE;
+    }
+
+    private static final Map<String, Name> NAMES = new HashMap<String, Name>();
+
+    static {
+        for (Name name : Name.values()) {
+            NAMES.put(name.name().toLowerCase(), name);
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final KeyEncoding encoding;
+    private byte[] bucket = EMPTY;
+    private byte[] key = EMPTY;
+    private byte[] value = EMPTY;
+    private int r;
+    private int w;
+    private int dw;
+    private long seed;
+    private boolean hasSeed;
+    // System.nanoTime() the reply is due by, 0 for none
+    private long deadline;
+
+    private byte[] encodedBucketBytes;
+    private String encodedBucket;
+    private String encodedKey;
+
+    /**
+     * Args with {@link KeyEncoding#BASE64} buckets and keys
+     */
+    public Args() {
+        this(KeyEncoding.BASE64);
+    }
+
+    /**
+     * @param encoding
+     *            how {@link #getBucket()} and {@link #getKey()} encode the
+     *            bytes
+     */
+    public Args(KeyEncoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Clear out the per message fields, leaves the encoded bucket cache alone
+     */
+    public void reset() {
+        bucket = EMPTY;
+        key = EMPTY;
+        value = EMPTY;
+        r = 0;
+        w = 0;
+        dw = 0;
+        seed = 0;
+        hasSeed = false;
+        deadline = 0;
+        encodedKey = null;
+    }
+
+    /**
+     * Parse <code>args</code>, a proplist of <code>{bucket, Bin}</code>,
+     * <code>{key, Bin}</code>, <code>{value, Bin}</code>, <code>{r, N}</code>,
+     * <code>{w, N}</code>, <code>{dw, N}</code>, <code>{seed, N}</code>
+     * (see {@link #generate(Op, KeyGenerator, ValueGenerator, AtomicLong)}),
+     * <code>{timeout, Ms}</code> (from now) and <code>{deadline, UnixMs}</code>
+     * (wall clock),
+     * straight from the external term format into this holder. Only the args
+     * <code>op</code> uses are kept, anything else is skipped.
+     * 
+     * @param op
+     * @param in
+     *            positioned at the start of the proplist
+     * @return this
+     * @throws OtpErlangDecodeException
+     */
+    public Args decode(final Op op, final OtpInputStream in) throws OtpErlangDecodeException {
+        reset();
+
+        final int arity = in.read_list_head();
+
+        for (int i = 0; i < arity; i++) {
+            if (in.read_tuple_head() != 2) {
+                throw new OtpErlangDecodeException("arg is not a 2 tuple");
+            }
+
+            final Name name = NAMES.get(in.read_atom());
+
+            if (name == null) {
+                in.read_any();
+                continue;
+            }
+
+            switch (name) {
+            case BUCKET:
+                bucket = in.read_binary();
+                break;
+            case KEY:
+                key = in.read_binary();
+                break;
+            case VALUE:
+                value = in.read_binary();
+                if (!op.isWrite()) {
+                    value = EMPTY;
+                }
+                break;
+            case R:
+                r = in.read_int();
+                break;
+            case W:
+                w = in.read_int();
+                break;
+            case DW:
+                dw = in.read_int();
+                break;
+            case SEED:
+                seed = in.read_long();
+                hasSeed = true;
+                break;
+            case TIMEOUT:
+                deadline = System.nanoTime() + in.read_long() * 1000000L;
+                break;
+            case DEADLINE:
+                deadline = System.nanoTime() + (in.read_long() - System.currentTimeMillis()) * 1000000L;
+                break;
+            }
+        }
+
+        readTail(in, arity);
+        return this;
+    }
+
+    /**
+     * Fill this holder directly, for args made in the shim rather than
+     * decoded from a message
+     * 
+     * @param op
+     * @param bucket
+     * @param key
+     * @param value
+     *            dropped unless <code>op</code> writes
+     * @param r
+     * @param w
+     * @param dw
+     * @return this
+     */
+    Args set(Op op, byte[] bucket, byte[] key, byte[] value, int r, int w, int dw) {
+        reset();
+        this.bucket = bucket;
+        this.key = key;
+        this.value = op.isWrite() ? value : EMPTY;
+        this.r = r;
+        this.w = w;
+        this.dw = dw;
+        return this;
+    }
+
+    /**
+     * Fill in what the message left out from the shim's generators: the key if
+     * there was no <code>{key, _}</code> and, for a write, the value if there
+     * was no <code>{value, _}</code>. Both are made from the message's
+     * <code>{seed, N}</code> if it had one, else the next number from
+     * <code>sequence</code>.
+     * 
+     * @param op
+     * @param keys
+     *            may be null
+     * @param values
+     *            may be null
+     * @param sequence
+     *            the shim's count, for messages without a seed
+     * @return this
+     */
+    Args generate(Op op, KeyGenerator keys, ValueGenerator values, AtomicLong sequence) {
+        final boolean needKey = keys != null && key == EMPTY;
+        final boolean needValue = values != null && op.isWrite() && value == EMPTY;
+
+        if (needKey || needValue) {
+            final long n = hasSeed ? seed : sequence.getAndIncrement();
+
+            if (needKey) {
+                key = keys.key(n);
+            }
+            if (needValue) {
+                value = values.value(n);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Give args that didn't carry a timeout or deadline the shim's default
+     * 
+     * @param timeoutMs
+     *            from now, 0 for none
+     * @return this
+     */
+    Args defaultTimeout(long timeoutMs) {
+        if (deadline == 0 && timeoutMs > 0) {
+            deadline = System.nanoTime() + timeoutMs * 1000000L;
+        }
+        return this;
+    }
+
+    /**
+     * Decode a batch operation's args, a list of arg lists one per key, into
+     * <code>into</code>, re-using the holders already there
+     * 
+     * @param op
+     *            the single key op of each entry
+     * @param in
+     *            positioned at the start of the list
+     * @param into
+     *            grown as needed, never shrunk
+     * @param encoding
+     *            for holders added to <code>into</code>
+     * @return the number of entries decoded
+     * @throws OtpErlangDecodeException
+     */
+    public static int decodeAll(final Op op, final OtpInputStream in, final List<Args> into,
+            final KeyEncoding encoding) throws OtpErlangDecodeException {
+        final int arity = in.read_list_head();
+
+        for (int i = 0; i < arity; i++) {
+            if (i == into.size()) {
+                into.add(new Args(encoding));
+            }
+            into.get(i).decode(op, in);
+        }
+
+        readTail(in, arity);
+        return arity;
+    }
+
+    /**
+     * A non empty proper list ends with nil
+     */
+    private static void readTail(final OtpInputStream in, final int arity) throws OtpErlangDecodeException {
+        if (arity > 0) {
+            in.read_nil();
+        }
+    }
+
+    /**
+     * @return the bucket, encoded for the riak-java-client
+     */
+    public String getBucket() {
+        if (encodedBucket == null || !Arrays.equals(encodedBucketBytes, bucket)) {
+            encodedBucketBytes = bucket;
+            encodedBucket = encoding.encode(bucket);
+        }
+        return encodedBucket;
+    }
+
+    /**
+     * @return the key, encoded for the riak-java-client
+     */
+    public String getKey() {
+        if (encodedKey == null) {
+            encodedKey = encoding.encode(key);
+        }
+        return encodedKey;
+    }
+
+    /**
+     * @return the bucket's bytes, as sent by transports that take bytes
+     */
+    public byte[] getBucketBytes() {
+        return bucket;
+    }
+
+    /**
+     * @return the key's bytes, as sent by transports that take bytes
+     */
+    public byte[] getKeyBytes() {
+        return key;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} the reply is due by, 0 for no
+     *         deadline
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return true if the deadline has passed, so the op shouldn't go to Riak
+     */
+    public boolean isExpired() {
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @return how {@link #getBucket()} and {@link #getKey()} are encoded
+     */
+    public KeyEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return the value
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * @return the r
+     */
+    public int getR() {
+        return r;
+    }
+
+    /**
+     * @return the w
+     */
+    public int getW() {
+        return w;
+    }
+
+    /**
+     * @return the dw
+     */
+    public int getDw() {
+        return dw;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return String.format("Args [bucket=%s, key=%s, value=%s bytes, r=%s, w=%s, dw=%s]", Arrays.toString(bucket),
+                             Arrays.toString(key), value.length, r, w, dw);
+    }
+}
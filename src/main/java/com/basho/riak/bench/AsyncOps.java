@@ -0,0 +1,299 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import com.basho.riak.pbc.RPB.RpbDelReq;
+import com.basho.riak.pbc.RPB.RpbGetReq;
+import com.basho.riak.pbc.RPB.RpbGetResp;
+import com.basho.riak.pbc.RPB.RpbPutReq;
+import com.basho.riak.pbc.RPB.RpbPutResp;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * The single key {@link Op}s of {@link ClientShim}, run on an
+ * {@link AsyncPbClient}. Same semantics as the blocking versions, updates are
+ * a fetch chained to a store from the fetch's callback.
+ * <p>
+ * With a {@link VClockCache} stores ask for the new vclock back and an update
+ * of a cached key stores straight away, falling back to fetch and store if
+ * that made siblings.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+class AsyncOps {
+
+    /**
+     * The outcome of an op, called on the {@link AsyncPbClient}'s I/O thread
+     */
+    interface Completion {
+        /**
+         * @param reply
+         *            the reply for basho_bench
+         */
+        void completed(OtpErlangObject reply);
+
+        /**
+         * @param e
+         */
+        void failed(Exception e);
+    }
+
+    private final AsyncPbClient client;
+    private final VClockCache cache;
+
+    /**
+     * @param client
+     * @param cache
+     *            may be null
+     */
+    AsyncOps(AsyncPbClient client, VClockCache cache) {
+        this.client = client;
+        this.cache = cache;
+    }
+
+    /**
+     * Start <code>op</code>, <code>args</code> must not change until
+     * <code>completion</code> is called
+     * 
+     * @param op
+     *            a single key op
+     * @param args
+     * @param completion
+     */
+    void perform(final Op op, final Args args, final Completion completion) {
+        switch (op) {
+        case GET:
+            if (cache != null && cache.isKeepingValues() && cache.get(args.getBucket(), args.getKey()) != null) {
+                completion.completed(Replies.OK_FOUND);
+                break;
+            }
+
+            fetch(args, new AsyncPbClient.Callback() {
+                public void completed(byte[] body) {
+                    try {
+                        final RpbGetResp response = RpbGetResp.parseFrom(body);
+
+                        if (isFound(response)) {
+                            remember(args, response.hasVclock() ? response.getVclock() : null,
+                                     response.getContentCount(), valueOf(response));
+                            completion.completed(Replies.OK_FOUND);
+                        } else {
+                            completion.completed(Replies.OK_NOTFOUND);
+                        }
+                    } catch (InvalidProtocolBufferException e) {
+                        completion.failed(e);
+                    }
+                }
+
+                public void failed(Exception e) {
+                    completion.failed(e);
+                }
+            });
+            break;
+        case PUT:
+            store(args, null, completion, null);
+            break;
+        case DELETE:
+            final RpbDelReq delete = RpbDelReq.newBuilder().setBucket(bucket(args)).setKey(key(args))
+                    .setRw(args.getR()).build();
+
+            if (cache != null) {
+                cache.invalidate(args.getBucket(), args.getKey());
+            }
+            client.submit(AsyncPbClient.MSG_DEL_REQ, delete, AsyncPbClient.MSG_DEL_RESP, args.getDeadline(),
+                          ok(completion));
+            break;
+        case CREATE_UPDATE:
+        case UPDATE:
+            final VClockCache.Entry cached = cache == null ? null : cache.get(args.getBucket(), args.getKey());
+
+            if (cached != null) {
+                store(args, ByteString.copyFrom(cached.getVclock()), completion, op);
+            } else {
+                fetchAndStore(op, args, completion);
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException(op.name());
+        }
+    }
+
+    /**
+     * An update the long way, fetch for the vclock then store
+     */
+    private void fetchAndStore(final Op op, final Args args, final Completion completion) {
+        fetch(args, new AsyncPbClient.Callback() {
+            public void completed(byte[] body) {
+                try {
+                    final RpbGetResp response = RpbGetResp.parseFrom(body);
+
+                    if (op == Op.UPDATE && !isFound(response)) {
+                        completion.completed(Replies.ERROR_NOTFOUND);
+                    } else {
+                        // create_update only keeps the vclock of a live object
+                        final boolean keepVclock = response.hasVclock()
+                                && (op == Op.UPDATE || response.getContentCount() > 0);
+                        store(args, keepVclock ? response.getVclock() : null, completion, null);
+                    }
+                } catch (InvalidProtocolBufferException e) {
+                    completion.failed(e);
+                }
+            }
+
+            public void failed(Exception e) {
+                completion.failed(e);
+            }
+        });
+    }
+
+    private void fetch(Args args, AsyncPbClient.Callback callback) {
+        final RpbGetReq request = RpbGetReq.newBuilder().setBucket(bucket(args)).setKey(key(args))
+                .setR(args.getR()).build();
+        client.submit(AsyncPbClient.MSG_GET_REQ, request, AsyncPbClient.MSG_GET_RESP, args.getDeadline(), callback);
+    }
+
+    /**
+     * @param args
+     * @param vclock
+     *            may be null
+     * @param completion
+     * @param retry
+     *            the update to fall back to if the store makes siblings, null
+     *            for none
+     */
+    private void store(final Args args, ByteString vclock, final Completion completion, final Op retry) {
+        // the content is written from the args' value, not copied in
+        final RpbPutReq.Builder request = RpbPutReq.newBuilder().setBucket(bucket(args)).setKey(key(args))
+                .setW(args.getW()).setDw(args.getDw()).setReturnBody(false);
+
+        if (vclock != null) {
+            request.setVclock(vclock);
+        }
+        if (cache == null) {
+            client.submitPut(request.buildPartial(), args.getValue(), args.getDeadline(), ok(completion));
+            return;
+        }
+
+        request.setReturnHead(true);
+        client.submitPut(request.buildPartial(), args.getValue(), args.getDeadline(), new AsyncPbClient.Callback() {
+            public void completed(byte[] body) {
+                try {
+                    final RpbPutResp response = RpbPutResp.parseFrom(body);
+
+                    if (remember(args, response.hasVclock() ? response.getVclock() : null,
+                                 response.getContentCount(), args.getValue())
+                            || retry == null) {
+                        completion.completed(Replies.OK);
+                    } else {
+                        // the cached vclock was stale
+                        fetchAndStore(retry, args, completion);
+                    }
+                } catch (InvalidProtocolBufferException e) {
+                    completion.failed(e);
+                }
+            }
+
+            public void failed(Exception e) {
+                completion.failed(e);
+            }
+        });
+    }
+
+    /**
+     * Cache the vclock (and value) from a response
+     * 
+     * @param args
+     * @param vclock
+     *            may be null
+     * @param values
+     *            the number of values in the response
+     * @param value
+     *            may be null
+     * @return false if the response has siblings
+     */
+    private boolean remember(Args args, ByteString vclock, int values, byte[] value) {
+        if (cache == null) {
+            return true;
+        }
+
+        if (values > 1) {
+            cache.conflict(args.getBucket(), args.getKey());
+            return false;
+        }
+
+        if (vclock == null) {
+            cache.invalidate(args.getBucket(), args.getKey());
+        } else {
+            cache.put(args.getBucket(), args.getKey(), vclock.toByteArray(), value);
+        }
+        return true;
+    }
+
+    /**
+     * @param response
+     * @return the first value, if the cache keeps values, else null
+     */
+    private byte[] valueOf(RpbGetResp response) {
+        if (cache == null || !cache.isKeepingValues() || response.getContentCount() == 0) {
+            return null;
+        }
+        return response.getContent(0).getValue().toByteArray();
+    }
+
+    /**
+     * @param response
+     * @return true if the object exists, the same test as the blocking GET
+     */
+    private static boolean isFound(RpbGetResp response) {
+        return response.getContentCount() > 0 || response.hasVclock();
+    }
+
+    /**
+     * @param completion
+     * @return a callback that completes with <code>ok</code> on success
+     */
+    private static AsyncPbClient.Callback ok(final Completion completion) {
+        return new AsyncPbClient.Callback() {
+            public void completed(byte[] body) {
+                completion.completed(Replies.OK);
+            }
+
+            public void failed(Exception e) {
+                completion.failed(e);
+            }
+        };
+    }
+
+    /**
+     * Encoded just as the blocking client encodes them, so both see the same
+     * objects, {@link KeyEncoding#BINARY} as the bytes themselves
+     */
+    private static ByteString bucket(Args args) {
+        if (args.getEncoding() == KeyEncoding.BINARY) {
+            return ByteString.copyFrom(args.getBucketBytes());
+        }
+        return ByteString.copyFromUtf8(args.getBucket());
+    }
+
+    private static ByteString key(Args args) {
+        if (args.getEncoding() == KeyEncoding.BINARY) {
+            return ByteString.copyFrom(args.getKeyBytes());
+        }
+        return ByteString.copyFromUtf8(args.getKey());
+    }
+}
@@ -0,0 +1,675 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.basho.riak.pbc.RPB.RpbErrorResp;
+import com.basho.riak.pbc.RPB.RpbPutReq;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * A non-blocking Riak protocol buffers client. A single I/O thread runs a
+ * {@link Selector} over a fixed set of connections to one host/port; callers
+ * {@link #submit(int, MessageLite, int, Callback)} a request and get the
+ * response on a {@link Callback}, run on the I/O thread, so a handful of
+ * connections can serve any number of shims without a thread blocked per
+ * request.
+ * <p>
+ * Riak answers requests on a connection in order, one at a time, so each
+ * connection has at most one request outstanding and requests queue until a
+ * connection is free. Connections don't set a client id, Riak's vnode vclocks
+ * don't need one.
+ * </p>
+ * <p>
+ * A put's value isn't copied into the frame, see
+ * {@link #submitPut(RpbPutReq, byte[], long, Callback)}.
+ * </p>
+ * <p>
+ * A request can have a deadline. One still waiting for a connection when it
+ * passes is failed without being sent, one in flight is failed and its
+ * connection replaced, as Riak's late answer can't be told apart from the
+ * next request's.
+ * </p>
+ * <p>
+ * Replacement connections are opened without blocking, the I/O thread
+ * finishes them as the selector says they're connectable, so a node that's
+ * slow to accept doesn't hold up the other connections. One that fails is
+ * tried again a second later, for as long as the client runs.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class AsyncPbClient {
+
+    static final int MSG_ERROR_RESP = 0;
+    static final int MSG_GET_REQ = 9;
+    static final int MSG_GET_RESP = 10;
+    static final int MSG_PUT_REQ = 11;
+    static final int MSG_PUT_RESP = 12;
+    static final int MSG_DEL_REQ = 13;
+    static final int MSG_DEL_RESP = 14;
+
+    // 4 byte length, 1 byte message code
+    private static final int HEADER_SIZE = 5;
+    // protobuf wire type of bytes and embedded message fields
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int PUT_CONTENT_FIELD = 4; // RpbPutReq.content
+    private static final int CONTENT_VALUE_FIELD = 1; // RpbContent.value
+    // how often deadlines are checked while any request has one
+    private static final long DEADLINE_TICK_MS = 5;
+    // how long after a failed connect it's tried again
+    private static final long RECONNECT_MS = 1000;
+
+    /**
+     * Receives the outcome of a request, on the I/O thread, so must not block
+     */
+    public interface Callback {
+        /**
+         * @param body
+         *            the response message, without the frame header
+         */
+        void completed(byte[] body);
+
+        /**
+         * @param e
+         *            an error response from Riak, or the connection failed
+         */
+        void failed(Exception e);
+    }
+
+    private final InetSocketAddress address;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<Request>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger withDeadline = new AtomicInteger();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    // only touched by the I/O thread
+    private final Queue<Request> waiting = new LinkedList<Request>();
+    private final Queue<Connection> idle = new LinkedList<Connection>();
+    // still connecting, not yet in connections
+    private final List<Connection> pending = new ArrayList<Connection>();
+    // connections that failed to reopen, tried again at reconnectAt
+    private int lost = 0;
+    private long reconnectAt;
+    private volatile boolean running = true;
+
+    /**
+     * @param host
+     * @param port
+     * @param connections
+     *            how many connections to open, they're opened up front
+     * @throws IOException
+     *             if none of the connections can be opened
+     */
+    public AsyncPbClient(String host, int port, int connections) throws IOException {
+        this.address = new InetSocketAddress(host, port);
+        this.selector = Selector.open();
+
+        try {
+            for (int i = 0; i < connections; i++) {
+                Connection connection = connect();
+                this.connections.add(connection);
+                this.idle.add(connection);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        this.ioThread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "riak-pb-io-" + host + ":" + port);
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /**
+     * Send <code>request</code> as soon as a connection is free, with no
+     * deadline
+     * 
+     * @see #submit(int, MessageLite, int, long, Callback)
+     */
+    public void submit(int code, MessageLite request, int responseCode, Callback callback) {
+        submit(code, request, responseCode, 0, callback);
+    }
+
+    /**
+     * Send <code>request</code> as soon as a connection is free. The request is
+     * serialized on the calling thread.
+     * 
+     * @param code
+     *            the request's message code
+     * @param request
+     * @param responseCode
+     *            the message code of a successful response
+     * @param deadline
+     *            the {@link System#nanoTime()} to fail the request with a
+     *            {@link SocketTimeoutException} at, 0 for none
+     * @param callback
+     */
+    public void submit(int code, MessageLite request, int responseCode, long deadline, Callback callback) {
+        if (!running) {
+            callback.failed(new IOException("client is shutdown"));
+            return;
+        }
+
+        final int size = request.getSerializedSize();
+        final byte[] frame = new byte[HEADER_SIZE + size];
+        final ByteBuffer header = ByteBuffer.wrap(frame);
+        header.putInt(size + 1).put((byte) code);
+
+        try {
+            CodedOutputStream out = CodedOutputStream.newInstance(frame, HEADER_SIZE, size);
+            request.writeTo(out);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // can't happen writing to an array
+            callback.failed(e);
+            return;
+        }
+
+        enqueue(new Request(new ByteBuffer[] { ByteBuffer.wrap(frame) }, responseCode, deadline, callback));
+    }
+
+    /**
+     * Send a put whose value goes to the socket straight from
+     * <code>value</code>, with a gathering write after the rest of the
+     * frame, so the only copy the shim makes of a value is the one decoding
+     * it from the Erlang message. <code>value</code> must not change until
+     * <code>callback</code> is called.
+     * 
+     * @param request
+     *            the put without its content, see
+     *            {@link RpbPutReq.Builder#buildPartial()}
+     * @param value
+     *            the content's value
+     * @param deadline
+     *            as for {@link #submit(int, MessageLite, int, long, Callback)}
+     * @param callback
+     */
+    public void submitPut(RpbPutReq request, byte[] value, long deadline, Callback callback) {
+        if (!running) {
+            callback.failed(new IOException("client is shutdown"));
+            return;
+        }
+
+        // content is the last field, and value the only field of content
+        final int valueField = CodedOutputStream.computeTagSize(CONTENT_VALUE_FIELD)
+                + CodedOutputStream.computeRawVarint32Size(value.length) + value.length;
+        final int size = request.getSerializedSize() + CodedOutputStream.computeTagSize(PUT_CONTENT_FIELD)
+                + CodedOutputStream.computeRawVarint32Size(valueField) + valueField;
+        final byte[] head = new byte[HEADER_SIZE + size - value.length];
+        ByteBuffer.wrap(head).putInt(size + 1).put((byte) MSG_PUT_REQ);
+
+        try {
+            CodedOutputStream out = CodedOutputStream.newInstance(head, HEADER_SIZE, head.length - HEADER_SIZE);
+            request.writeTo(out);
+            out.writeTag(PUT_CONTENT_FIELD, WIRETYPE_LENGTH_DELIMITED);
+            out.writeRawVarint32(valueField);
+            out.writeTag(CONTENT_VALUE_FIELD, WIRETYPE_LENGTH_DELIMITED);
+            out.writeRawVarint32(value.length);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // can't happen writing to an array
+            callback.failed(e);
+            return;
+        }
+
+        enqueue(new Request(new ByteBuffer[] { ByteBuffer.wrap(head), ByteBuffer.wrap(value) }, MSG_PUT_RESP,
+                            deadline, callback));
+    }
+
+    private void enqueue(Request request) {
+        outstanding.incrementAndGet();
+        if (request.deadline != 0) {
+            withDeadline.incrementAndGet();
+        }
+        submitted.offer(request);
+
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return the number of requests submitted and not yet completed
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the number of open connections
+     */
+    public int getConnections() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * Stop the I/O thread and close the connections, anything outstanding
+     * fails
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private Connection connect() throws IOException {
+        final SocketChannel channel = SocketChannel.open(address);
+
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            final Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Start opening a connection to replace a broken one, on the I/O thread.
+     * It joins the pool once {@link Connection#finishConnect()} succeeds.
+     */
+    private void reconnect() {
+        SocketChannel channel = null;
+
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final Connection connection = new Connection(channel);
+
+            if (channel.connect(address)) {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connected(connection);
+            } else {
+                connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                pending.add(connection);
+            }
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // nothing to do
+                }
+            }
+            reconnectFailed(e);
+        }
+    }
+
+    /**
+     * A replacement connection couldn't be opened, try again later
+     */
+    private void reconnectFailed(IOException cause) {
+        if (lost++ == 0) {
+            reconnectAt = System.currentTimeMillis() + RECONNECT_MS;
+            System.out.println("failed to reconnect to " + address + " :: " + cause);
+        }
+    }
+
+    /**
+     * A new connection is ready for requests
+     */
+    private void connected(Connection connection) {
+        synchronized (connections) {
+            connections.add(connection);
+        }
+        idle.add(connection);
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                final boolean deadlines = withDeadline.get() > 0;
+                long timeout = deadlines ? DEADLINE_TICK_MS : 0;
+
+                if (lost > 0) {
+                    final long untilReconnect = Math.max(1, reconnectAt - System.currentTimeMillis());
+                    timeout = timeout == 0 ? untilReconnect : Math.min(timeout, untilReconnect);
+                }
+                selector.select(timeout);
+                wakeupPending.set(false);
+
+                if (lost > 0 && System.currentTimeMillis() >= reconnectAt) {
+                    final int retries = lost;
+                    lost = 0;
+
+                    for (int i = 0; i < retries; i++) {
+                        reconnect();
+                    }
+                }
+
+                Request request;
+                while ((request = submitted.poll()) != null) {
+                    waiting.add(request);
+                }
+                dispatch();
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Connection connection = (Connection) key.attachment();
+
+                    try {
+                        if (key.isConnectable()) {
+                            connection.finishConnect();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        if (pending.remove(connection)) {
+                            // don't retry straight away, the node may be down
+                            connection.close();
+                            reconnectFailed(e);
+                        } else {
+                            replace(connection, e);
+                        }
+                    }
+                }
+                if (deadlines) {
+                    expire();
+                }
+                dispatch();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            running = false;
+            close();
+        }
+    }
+
+    /**
+     * Hand waiting requests to idle connections, failing any whose deadline
+     * has passed
+     */
+    private void dispatch() {
+        while (!waiting.isEmpty() && !idle.isEmpty()) {
+            final Request request = waiting.poll();
+
+            if (request.isExpired(System.nanoTime())) {
+                complete(request, null, new SocketTimeoutException("deadline passed before sending"));
+                continue;
+            }
+
+            final Connection connection = idle.poll();
+
+            try {
+                connection.send(request);
+            } catch (IOException e) {
+                replace(connection, e);
+            }
+        }
+
+        if (idle.isEmpty() && getConnections() == 0 && pending.isEmpty()) {
+            fail(waiting, new IOException("no connection to " + address));
+        }
+    }
+
+    /**
+     * Fail requests whose deadline has passed, waiting or in flight
+     */
+    private void expire() {
+        final long now = System.nanoTime();
+
+        for (Iterator<Request> it = waiting.iterator(); it.hasNext();) {
+            final Request request = it.next();
+
+            if (request.isExpired(now)) {
+                it.remove();
+                complete(request, null, new SocketTimeoutException("deadline passed before sending"));
+            }
+        }
+
+        final List<Connection> busy = new ArrayList<Connection>();
+        synchronized (connections) {
+            for (Connection connection : connections) {
+                if (connection.current != null && connection.current.isExpired(now)) {
+                    busy.add(connection);
+                }
+            }
+        }
+        for (Connection connection : busy) {
+            // its late reply would be taken for the next request's, so fail
+            // the request and reconnect, without blocking the selector
+            replace(connection, new SocketTimeoutException("deadline passed waiting for " + address));
+        }
+    }
+
+    /**
+     * Fail the request on a broken connection and start opening a new one in
+     * its place
+     */
+    private void replace(Connection broken, IOException cause) {
+        broken.close();
+        idle.remove(broken);
+        synchronized (connections) {
+            connections.remove(broken);
+        }
+        if (broken.current != null) {
+            complete(broken.current, null, cause);
+            broken.current = null;
+        }
+        reconnect();
+    }
+
+    private void close() {
+        synchronized (connections) {
+            for (Connection connection : connections) {
+                if (connection.current != null) {
+                    complete(connection.current, null, new IOException("client is shutdown"));
+                }
+                connection.close();
+            }
+            connections.clear();
+        }
+        for (Connection connection : pending) {
+            connection.close();
+        }
+        pending.clear();
+        idle.clear();
+
+        Request request;
+        while ((request = submitted.poll()) != null) {
+            waiting.add(request);
+        }
+        fail(waiting, new IOException("client is shutdown"));
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private void fail(Queue<Request> requests, IOException cause) {
+        Request request;
+
+        while ((request = requests.poll()) != null) {
+            complete(request, null, cause);
+        }
+    }
+
+    private void complete(Request request, byte[] body, Exception failure) {
+        outstanding.decrementAndGet();
+        if (request.deadline != 0) {
+            withDeadline.decrementAndGet();
+        }
+
+        try {
+            if (failure == null) {
+                request.callback.completed(body);
+            } else {
+                request.callback.failed(failure);
+            }
+        } catch (RuntimeException e) {
+            // don't let a callback kill the I/O thread
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A request waiting for, or on, a connection
+     */
+    private static final class Request {
+        private final ByteBuffer[] frame;
+        private final int responseCode;
+        private final long deadline;
+        private final Callback callback;
+
+        private Request(ByteBuffer[] frame, int responseCode, long deadline, Callback callback) {
+            this.frame = frame;
+            this.responseCode = responseCode;
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+
+        private boolean isExpired(long now) {
+            return deadline != 0 && now - deadline >= 0;
+        }
+    }
+
+    /**
+     * A connection and the state of its one outstanding request
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private SelectionKey key;
+        private ByteBuffer body;
+        private Request current;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void send(Request request) throws IOException {
+            current = request;
+            write();
+        }
+
+        private void write() throws IOException {
+            channel.write(current.frame);
+
+            if (current.frame[current.frame.length - 1].hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void read() throws IOException {
+            while (true) {
+                if (header.hasRemaining()) {
+                    if (channel.read(header) < 0) {
+                        throw new IOException("connection closed by " + address);
+                    }
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    body = ByteBuffer.allocate(header.getInt(0) - 1);
+                }
+
+                if (body.hasRemaining() && channel.read(body) < 0) {
+                    throw new IOException("connection closed by " + address);
+                }
+                if (body.hasRemaining()) {
+                    return;
+                }
+
+                if (current == null) {
+                    throw new IOException("unexpected response from " + address);
+                }
+                final Request request = current;
+                final int code = header.get(4);
+                current = null;
+                header.clear();
+                idle.add(this);
+
+                if (code == request.responseCode) {
+                    complete(request, body.array(), null);
+                } else if (code == MSG_ERROR_RESP) {
+                    complete(request, null, errorResponse(body.array()));
+                } else {
+                    complete(request, null, new IOException("unexpected message code " + code + " from " + address));
+                }
+            }
+        }
+
+        /**
+         * @param body
+         *            an <code>RpbErrorResp</code>
+         * @return Riak's error, or what went wrong reading it
+         */
+        private IOException errorResponse(byte[] body) {
+            try {
+                return new IOException(RpbErrorResp.parseFrom(body).getErrmsg().toStringUtf8());
+            } catch (IOException e) {
+                return new IOException("unreadable error response from " + address + " :: " + e);
+            } catch (RuntimeException e) {
+                return new IOException("unreadable error response from " + address + " :: " + e);
+            }
+        }
+
+        private void finishConnect() throws IOException {
+            if (channel.finishConnect()) {
+                pending.remove(this);
+                key.interestOps(SelectionKey.OP_READ);
+                connected(this);
+            }
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static com.basho.riak.bench.OtpMessageHelper.prop;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpMbox;
+
+/**
+ * How far behind a {@link ClientShim} is: the messages waiting in its
+ * mailbox and the requests it has in flight. With a high-water mark set,
+ * requests that arrive when the two together reach it are turned away, so an
+ * overloaded Riak shows up in basho_bench as <code>{error, overloaded}</code>
+ * rather than as an ever growing mailbox.
+ * <p>
+ * If {@link MailboxProbe} can't see into the mailbox only requests in flight
+ * count.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class Backlog {
+
+    private final OtpMbox mbox;
+    private final int highWater;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong overloaded = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private volatile int maxQueued;
+
+    /**
+     * @param mbox
+     *            the shim's mailbox
+     * @param highWater
+     *            0 to accept everything
+     */
+    public Backlog(OtpMbox mbox, int highWater) {
+        this.mbox = mbox;
+        this.highWater = highWater;
+    }
+
+    /**
+     * Called as each request is taken from the mailbox
+     * 
+     * @return true if the request should be run, and {@link #done()} called
+     *         when it is replied to, false if it should be turned away
+     */
+    public boolean admit() {
+        final int queued = getQueued();
+
+        if (queued > maxQueued) {
+            // racy, a missed peak is close enough
+            maxQueued = queued;
+        }
+        if (highWater > 0 && queued + inFlight.get() >= highWater) {
+            overloaded.incrementAndGet();
+            return false;
+        }
+        inFlight.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * An admitted request has been replied to
+     */
+    public void done() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * An admitted request was replied to with <code>{error, timeout}</code>
+     */
+    public void timedOut() {
+        timedOut.incrementAndGet();
+    }
+
+    /**
+     * @return the number of messages waiting in the mailbox now
+     */
+    public int getQueued() {
+        return Math.max(0, MailboxProbe.depth(mbox));
+    }
+
+    /**
+     * @return the most messages seen waiting in the mailbox
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @return the number of requests admitted and not yet replied to
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of requests turned away
+     */
+    public long getOverloaded() {
+        return overloaded.get();
+    }
+
+    /**
+     * @return the number of requests that timed out
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * @param backlogs
+     * @return <code>[{shims, N}, {queued, N}, {max_queued, N}, {in_flight, N}, {overloaded, N}, {timeouts, N}]</code>,
+     *         summed over <code>backlogs</code> except max_queued, the
+     *         largest of any one shim
+     */
+    public static OtpErlangList merge(Collection<Backlog> backlogs) {
+        long queued = 0, maxQueued = 0, inFlight = 0, overloaded = 0, timedOut = 0;
+
+        for (Backlog backlog : backlogs) {
+            queued += backlog.getQueued();
+            maxQueued = Math.max(maxQueued, backlog.getMaxQueued());
+            inFlight += backlog.getInFlight();
+            overloaded += backlog.getOverloaded();
+            timedOut += backlog.getTimedOut();
+        }
+        return new OtpErlangList(new OtpErlangObject[] { prop("shims", backlogs.size()), prop("queued", queued),
+                                                        prop("max_queued", maxQueued),
+                                                        prop("in_flight", inFlight),
+                                                        prop("overloaded", overloaded),
+                                                        prop("timeouts", timedOut) });
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+
+/**
+ * How a {@link ClusterClient} picks the node for each request
+ * 
+ * @author russell
+ * 
+ */
+public enum Balance {
+
+    /**
+     * Each healthy node in turn
+     */
+    ROUND_ROBIN,
+    /**
+     * The healthy node with the fewest requests in flight, across all shims
+     */
+    LEAST_OUTSTANDING,
+    /**
+     * A healthy node at random, weighted to the ones with the lowest recent
+     * latency
+     */
+    LATENCY;
+
+    /**
+     * @param atom
+     * @return the {@link Balance}
+     */
+    public static Balance fromAtom(OtpErlangAtom atom) {
+        try {
+            return Balance.valueOf(atom.atomValue().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown balance " + atom);
+        }
+    }
+}
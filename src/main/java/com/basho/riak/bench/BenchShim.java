@@ -21,8 +21,10 @@ import com.ericsson.otp.erlang.OtpMbox;
 import com.ericsson.otp.erlang.OtpNode;
 
 /**
- * Starts up the OtpNode and creates a {@link Factory} instance for creating
- * client {@link OtpMbox}en
+ * Starts up the OtpNode(s) and creates a {@link Factory} instance for creating
+ * client {@link OtpMbox}en. With more than one node each has its own
+ * distribution connections and reader threads, and shims are spread over
+ * them.
  * 
  * @author russell
  * 
@@ -31,35 +33,128 @@ public class BenchShim {
 
     private static BenchShim INSTANCE;
 
-    private final OtpNode self;
+    private final OtpNode[] nodes;
     private final Factory factory;
     private final ExecutorService factoryExecutorService = Executors.newSingleThreadExecutor();
 
-    private BenchShim(String name, String cookie) throws IOException {
-        self = new OtpNode(name, cookie);
-        factory = new Factory(self);
+    private BenchShim(String name, String cookie, Engine engine, int nodeCount) throws IOException {
+        nodes = new OtpNode[nodeCount];
+
+        for (int i = 0; i < nodeCount; i++) {
+            final String nodeName = nodeName(name, i);
+            nodes[i] = cookie == null ? new OtpNode(nodeName) : new OtpNode(nodeName, cookie);
+        }
+        factory = new Factory(nodes, engine);
     }
 
-    private BenchShim(String name) throws IOException {
-        self = new OtpNode(name);
-        factory = new Factory(self);
+    /**
+     * @param name
+     *            the first node's name, <code>alive</code> or
+     *            <code>alive@host</code>
+     * @param i
+     * @return <code>name</code> for the first node, then
+     *         <code>alive_1@host</code>, <code>alive_2@host</code>...
+     */
+    static String nodeName(String name, int i) {
+        if (i == 0) {
+            return name;
+        }
+        final int at = name.indexOf('@');
+        return at < 0 ? name + "_" + i : name.substring(0, at) + "_" + i + name.substring(at);
     }
 
     public static synchronized void run(String name, String cookie) throws IOException {
-        if (INSTANCE == null) {
-            INSTANCE = new BenchShim(name, cookie);
-            INSTANCE.start();
-        }
+        run(name, cookie, Engine.CACHED);
     }
 
     public static synchronized void run(String name) throws IOException {
+        run(name, null, Engine.CACHED);
+    }
+
+    /**
+     * @param name
+     *            the node name
+     * @param cookie
+     *            may be null for the default cookie
+     * @param engine
+     *            how client shims are run
+     * @throws IOException
+     */
+    public static synchronized void run(String name, String cookie, Engine engine) throws IOException {
+        run(name, cookie, engine, null);
+    }
+
+    /**
+     * @param name
+     *            the node name
+     * @param cookie
+     *            may be null for the default cookie
+     * @param engine
+     *            how client shims are run
+     * @param warmUp
+     *            may be null for no warm-up, otherwise the factory holds
+     *            creates until a {@link WarmUp} with this spec is done
+     * @throws IOException
+     */
+    public static synchronized void run(String name, String cookie, Engine engine, WarmUpSpec warmUp)
+            throws IOException {
+        run(name, cookie, engine, warmUp, 1);
+    }
+
+    /**
+     * @param name
+     *            the first node's name, the others add <code>_1</code>,
+     *            <code>_2</code>... to its alive part
+     * @param cookie
+     *            may be null for the default cookie
+     * @param engine
+     *            how client shims are run
+     * @param warmUp
+     *            may be null for no warm-up
+     * @param nodeCount
+     *            how many nodes to start, each with a "factory" mbox
+     * @throws IOException
+     */
+    public static synchronized void run(String name, String cookie, Engine engine, WarmUpSpec warmUp, int nodeCount)
+            throws IOException {
+        run(name, cookie, engine, warmUp, nodeCount, null);
+    }
+
+    /**
+     * @param name
+     *            the first node's name
+     * @param cookie
+     *            may be null for the default cookie
+     * @param engine
+     *            how client shims are run
+     * @param warmUp
+     *            may be null for no warm-up
+     * @param nodeCount
+     *            how many nodes to start
+     * @param bridge
+     *            may be null, otherwise where a {@link Bridge} listens:
+     *            <code>tcp:Port</code>, <code>tcp:Host:Port</code> or
+     *            <code>unix:Path</code>
+     * @throws IOException
+     */
+    public static synchronized void run(String name, String cookie, Engine engine, WarmUpSpec warmUp,
+            int nodeCount, String bridge) throws IOException {
+        if (nodeCount < 1) {
+            throw new IllegalArgumentException("need at least one node");
+        }
         if (INSTANCE == null) {
-            INSTANCE = new BenchShim(name);
-            INSTANCE.start();
+            INSTANCE = new BenchShim(name, cookie, engine.orFallback(), nodeCount);
+            INSTANCE.start(warmUp, bridge);
         }
     }
 
-    private void start() {
+    private void start(WarmUpSpec warmUp, String bridge) throws IOException {
+        if (warmUp != null) {
+            factory.warmUp(warmUp);
+        }
+        if (bridge != null) {
+            factory.bridge(bridge);
+        }
         factoryExecutorService.execute(factory);
     }
 
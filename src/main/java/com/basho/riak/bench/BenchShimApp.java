@@ -20,11 +20,28 @@ import java.io.IOException;
  * <p>
  * Usage -- <code>
  * <pre>
- * BenchDriverApp [nodeName cookie]
+ * BenchDriverApp [nodeName cookie engine warmup nodes bridge]
  * </pre>
  * </code>
  * </p>
  * <p>
+ * engine is one of cached (the default), fixed or virtual, see {@link Engine}
+ * </p>
+ * <p>
+ * warmup is a {@link WarmUpSpec}, e.g. <code>max=60,transport=pb</code> or
+ * an empty string for the defaults, without it (or with <code>none</code>)
+ * there's no warm-up
+ * </p>
+ * <p>
+ * nodes is how many Jinterface nodes to start (default 1), the first is
+ * nodeName, the others nodeName_1, nodeName_2...
+ * </p>
+ * <p>
+ * bridge is where to listen for {@link Bridge} connections,
+ * <code>tcp:Port</code>, <code>tcp:Host:Port</code> or
+ * <code>unix:Path</code>, without it there's no bridge
+ * </p>
+ * <p>
  * I run it with mvn like this <code>
  * <pre>
  *  mvn exec:java -Dexec.mainClass="com.basho.riak.bench.BenchDriverApp" -Dexec.classpathScope=runtime -Dexec.args="java@myhost.com mySecretCookie"
@@ -42,6 +59,10 @@ public class BenchShimApp {
     public static void main(String[] args) {
         String nodeName = "java_client";
         String cookie = null;
+        Engine engine = Engine.CACHED;
+        WarmUpSpec warmUp = null;
+        int nodes = 1;
+        String bridge = null;
 
         if (args.length > 0) {
             nodeName = args[0];
@@ -51,12 +72,24 @@ public class BenchShimApp {
             cookie = args[1];
         }
 
+        if (args.length > 2) {
+            engine = Engine.fromString(args[2]);
+        }
+
+        if (args.length > 3 && !"none".equals(args[3])) {
+            warmUp = WarmUpSpec.parse(args[3]);
+        }
+
+        if (args.length > 4) {
+            nodes = Integer.parseInt(args[4]);
+        }
+
+        if (args.length > 5) {
+            bridge = args[5];
+        }
+
         try {
-            if (cookie == null) {
-                BenchShim.run(nodeName);
-            } else {
-                BenchShim.run(nodeName, cookie);
-            }
+            BenchShim.run(nodeName, cookie, engine, warmUp, nodes, bridge);
         } catch (IOException e) {
             e.printStackTrace();
         }
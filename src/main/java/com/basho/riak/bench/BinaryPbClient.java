@@ -0,0 +1,257 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.basho.riak.client.IRiakObject;
+import com.basho.riak.client.bucket.BucketProperties;
+import com.basho.riak.client.builders.RiakObjectBuilder;
+import com.basho.riak.client.cap.VClock;
+import com.basho.riak.client.query.MapReduceResult;
+import com.basho.riak.client.query.NodeStats;
+import com.basho.riak.client.query.WalkResult;
+import com.basho.riak.client.raw.DeleteMeta;
+import com.basho.riak.client.raw.FetchMeta;
+import com.basho.riak.client.raw.RawClient;
+import com.basho.riak.client.raw.RiakResponse;
+import com.basho.riak.client.raw.StoreMeta;
+import com.basho.riak.client.raw.Transport;
+import com.basho.riak.client.raw.pbc.PBClientAdapter;
+import com.basho.riak.client.raw.query.LinkWalkSpec;
+import com.basho.riak.client.raw.query.MapReduceSpec;
+import com.basho.riak.client.raw.query.MapReduceTimeoutException;
+import com.basho.riak.client.raw.query.indexes.IndexQuery;
+import com.basho.riak.pbc.KeySource;
+import com.basho.riak.pbc.RequestMeta;
+import com.basho.riak.pbc.RiakClient;
+import com.basho.riak.pbc.RiakObject;
+import com.google.protobuf.ByteString;
+
+/**
+ * A protocol buffers {@link RawClient} for {@link KeyEncoding#BINARY} buckets
+ * and keys. The riak-java-client's own adapter sends the UTF-8 of the bucket
+ * and key strings, this one sends the bytes they were made from, so the shim
+ * reads and writes the same keys as the Erlang riakc driver. Key/value
+ * operations and bucket and key listing use the bytes, everything else goes
+ * through a stock {@link PBClientAdapter} on the same connection pool, so
+ * bucket names there are sent as UTF-8.
+ * 
+ * @author russell
+ * 
+ */
+public class BinaryPbClient implements RawClient {
+
+    private static final Random RANDOM = new Random();
+
+    private final RiakClient client;
+    private final PBClientAdapter adapter;
+    private byte[] clientId;
+
+    /**
+     * @param client
+     */
+    public BinaryPbClient(RiakClient client) {
+        this.client = client;
+        this.adapter = new PBClientAdapter(client);
+    }
+
+    /**
+     * @return the pb client this one sends through, see {@link ClientAbort}
+     */
+    RiakClient getClient() {
+        return client;
+    }
+
+    public RiakResponse head(String bucket, String key, FetchMeta fetchMeta) throws IOException {
+        return fetch(bucket, key, new FetchMeta(fetchMeta.getR(), fetchMeta.getPr(), fetchMeta.getNotFoundOK(),
+                                                fetchMeta.getBasicQuorum(), true, fetchMeta.getReturnDeletedVClock(),
+                                                null, null));
+    }
+
+    public RiakResponse fetch(String bucket, String key) throws IOException {
+        return response(client.fetch(bytes(bucket), bytes(key)));
+    }
+
+    public RiakResponse fetch(String bucket, String key, int readQuorum) throws IOException {
+        return response(client.fetch(bytes(bucket), bytes(key), readQuorum));
+    }
+
+    public RiakResponse fetch(String bucket, String key, FetchMeta fetchMeta) throws IOException {
+        // if modified isn't passed on, there's no unchanged response to give
+        final com.basho.riak.pbc.FetchMeta meta = new com.basho.riak.pbc.FetchMeta(
+                fetchMeta.hasR() ? Integer.valueOf(fetchMeta.getR().getIntValue()) : null,
+                fetchMeta.hasPr() ? Integer.valueOf(fetchMeta.getPr().getIntValue()) : null,
+                fetchMeta.getNotFoundOK(), fetchMeta.getBasicQuorum(), fetchMeta.getHeadOnly(),
+                fetchMeta.getReturnDeletedVClock(), null);
+        return response(client.fetch(bytes(bucket), bytes(key), meta).getObjects());
+    }
+
+    public RiakResponse store(IRiakObject object, StoreMeta storeMeta) throws IOException {
+        final RequestMeta meta = new RequestMeta();
+
+        if (storeMeta.hasW()) {
+            meta.w(storeMeta.getW().getIntValue());
+        }
+        if (storeMeta.hasDw()) {
+            meta.dw(storeMeta.getDw().getIntValue());
+        }
+        if (storeMeta.hasPw()) {
+            meta.pw(storeMeta.getPw().getIntValue());
+        }
+        meta.returnBody(storeMeta.hasReturnBody() && storeMeta.getReturnBody());
+        if (storeMeta.hasReturnHead()) {
+            meta.returnHead(storeMeta.getReturnHead());
+        }
+        return response(client.store(riakObject(object), meta));
+    }
+
+    public void store(IRiakObject object) throws IOException {
+        client.store(riakObject(object));
+    }
+
+    public void delete(String bucket, String key) throws IOException {
+        client.delete(bytes(bucket), bytes(key));
+    }
+
+    public void delete(String bucket, String key, int deleteQuorum) throws IOException {
+        client.delete(bytes(bucket), bytes(key), deleteQuorum);
+    }
+
+    public void delete(String bucket, String key, DeleteMeta deleteMeta) throws IOException {
+        if (deleteMeta.hasRw()) {
+            delete(bucket, key, deleteMeta.getRw().getIntValue());
+        } else {
+            delete(bucket, key);
+        }
+    }
+
+    public Set<String> listBuckets() throws IOException {
+        final Set<String> buckets = new HashSet<String>();
+
+        for (ByteString bucket : client.listBuckets()) {
+            buckets.add(KeyEncoding.BINARY.encode(bucket.toByteArray()));
+        }
+        return buckets;
+    }
+
+    public BucketProperties fetchBucket(String bucketName) throws IOException {
+        return adapter.fetchBucket(bucketName);
+    }
+
+    public void updateBucket(String name, BucketProperties bucketProperties) throws IOException {
+        adapter.updateBucket(name, bucketProperties);
+    }
+
+    public Iterable<String> listKeys(String bucketName) throws IOException {
+        final List<String> keys = new ArrayList<String>();
+        final KeySource source = client.listKeys(bytes(bucketName));
+
+        try {
+            while (source.hasNext()) {
+                keys.add(KeyEncoding.BINARY.encode(source.next().toByteArray()));
+            }
+        } finally {
+            source.close();
+        }
+        return keys;
+    }
+
+    public WalkResult linkWalk(LinkWalkSpec linkWalkSpec) throws IOException {
+        return adapter.linkWalk(linkWalkSpec);
+    }
+
+    public MapReduceResult mapReduce(MapReduceSpec spec) throws IOException, MapReduceTimeoutException {
+        return adapter.mapReduce(spec);
+    }
+
+    public byte[] generateAndSetClientId() throws IOException {
+        final byte[] id = new byte[4];
+        RANDOM.nextBytes(id);
+        setClientId(id);
+        return id;
+    }
+
+    public void setClientId(byte[] clientId) throws IOException {
+        client.setClientID(ByteString.copyFrom(clientId));
+        this.clientId = clientId;
+    }
+
+    public byte[] getClientId() throws IOException {
+        return clientId;
+    }
+
+    public void ping() throws IOException {
+        client.ping();
+    }
+
+    public List<String> fetchIndex(IndexQuery indexQuery) throws IOException {
+        return adapter.fetchIndex(indexQuery);
+    }
+
+    public Transport getTransport() {
+        return Transport.PB;
+    }
+
+    public void shutdown() {
+        client.shutdown();
+    }
+
+    public NodeStats stats() throws IOException {
+        return adapter.stats();
+    }
+
+    /**
+     * @param object
+     * @return the pbc object for <code>object</code>, bucket and key as bytes
+     */
+    private static RiakObject riakObject(IRiakObject object) {
+        final VClock vclock = object.getVClock();
+        return new RiakObject(vclock == null ? null : ByteString.copyFrom(vclock.getBytes()), bytes(object.getBucket()),
+                              bytes(object.getKey()), ByteString.copyFrom(object.getValue()));
+    }
+
+    /**
+     * @param objects
+     *            siblings from a fetch or store
+     * @return the {@link RiakResponse}, buckets and keys as
+     *         {@link KeyEncoding#BINARY} strings
+     */
+    private static RiakResponse response(RiakObject[] objects) {
+        if (objects == null || objects.length == 0) {
+            return RiakResponse.empty();
+        }
+
+        final ByteString vclock = objects[0].getVclock();
+        final byte[] vclockBytes = vclock == null ? null : vclock.toByteArray();
+        final IRiakObject[] converted = new IRiakObject[objects.length];
+
+        for (int i = 0; i < objects.length; i++) {
+            final RiakObject o = objects[i];
+            converted[i] = RiakObjectBuilder.newBuilder(KeyEncoding.BINARY.encode(o.getBucketBS().toByteArray()),
+                                                        KeyEncoding.BINARY.encode(o.getKeyBS().toByteArray()))
+                    .withValue(o.getValue().toByteArray()).withVClock(vclockBytes).build();
+        }
+        return new RiakResponse(vclockBytes, converted);
+    }
+
+    private static ByteString bytes(String binary) {
+        return ByteString.copyFrom(KeyEncoding.decode(binary));
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static com.basho.riak.bench.OtpMessageHelper.prop;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangRangeException;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * A length prefixed binary protocol over TCP or a Unix domain socket, in
+ * place of Erlang distribution. Each connection gets a {@link ClientShim} of
+ * its own and requests go through the shim's usual decode and dispatch, only
+ * the carrier is different: no distribution header, atom cache or shared
+ * connection, and no pids or refs in the messages.
+ * <p>
+ * Every frame, both ways, is <code>&lt;&lt;Length:32, Id:32, Term/binary&gt;&gt;</code>
+ * where Length counts the Id and Term and Term is
+ * <code>term_to_binary</code> output, so <code>gen_tcp</code> with
+ * <code>{packet, 4}</code> does the framing. The first frame's Term is a
+ * factory create payload, <code>{Hosts, Port, BufferSizeKb, Transport, Options}</code>,
+ * answered with <code>ok</code> or <code>{error, Reason}</code> (and the
+ * connection closed). After that a Term is <code>{Op, Args}</code> and the
+ * answer is the same reply the shim would send over distribution, with the
+ * request's Id. With the <code>pipeline</code> or <code>async</code> options
+ * several requests can be in flight on a connection and replies come back as
+ * they complete, matched up by Id.
+ * </p>
+ * <p>
+ * One I/O thread runs a {@link Selector} over the listening socket and every
+ * connection. A connection's requests are run in order by a thread of its
+ * own, as a shim's are from its mailbox.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class Bridge implements Runnable {
+
+    // 4 byte length
+    private static final int HEADER_SIZE = 4;
+    // 4 byte request id
+    private static final int ID_SIZE = 4;
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final int VERSION = 131;
+    private static final OtpErlangAtom OK = new OtpErlangAtom("ok");
+    // tells a connection's worker to stop
+    private static final byte[] CLOSED = new byte[0];
+
+    private final Factory factory;
+    private final String address;
+    private final String unixPath;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final Queue<Connection> flushes = new ConcurrentLinkedQueue<Connection>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    // only touched by the I/O thread
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private volatile boolean running = true;
+
+    /**
+     * Starts listening, {@link #run()} accepts
+     * 
+     * @param factory
+     *            counts the bridge's shims in its stats
+     * @param address
+     *            <code>tcp:Port</code>, <code>tcp:Host:Port</code> or
+     *            <code>unix:Path</code>
+     * @throws IOException
+     */
+    public Bridge(Factory factory, String address) throws IOException {
+        this.factory = factory;
+        this.address = address;
+
+        if (address.startsWith("unix:")) {
+            this.unixPath = address.substring("unix:".length());
+            final File stale = new File(unixPath);
+
+            if (stale.exists()) {
+                if (!isSocket(unixPath)) {
+                    throw new IOException("can't listen on " + unixPath + ", it exists and isn't a socket");
+                }
+                // a socket file left by an earlier run
+                stale.delete();
+            }
+            this.server = openUnix(unixPath);
+        } else if (address.startsWith("tcp:")) {
+            this.unixPath = null;
+            final String hostPort = address.substring("tcp:".length());
+            final int colon = hostPort.lastIndexOf(':');
+            final int port = Integer.parseInt(hostPort.substring(colon + 1));
+            this.server = ServerSocketChannel.open();
+            this.server.socket().setReuseAddress(true);
+            this.server.socket().bind(colon < 0 ? new InetSocketAddress(port)
+                    : new InetSocketAddress(hostPort.substring(0, colon), port));
+        } else {
+            throw new IllegalArgumentException("bridge address " + address
+                    + " is not tcp:Port, tcp:Host:Port or unix:Path");
+        }
+
+        this.selector = Selector.open();
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        System.out.println("Bridge listening on " + address);
+    }
+
+    /**
+     * Unix domain sockets need JDK 16+, so they're opened reflectively
+     * 
+     * @param path
+     * @return a server channel bound to <code>path</code>
+     * @throws IOException
+     */
+    private static ServerSocketChannel openUnix(String path) throws IOException {
+        try {
+            final Class<?> family = Class.forName("java.net.ProtocolFamily");
+            final Object unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+            final SocketAddress bindTo = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class).invoke(null, path);
+            final ServerSocketChannel channel = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", family).invoke(null, unix);
+            ServerSocketChannel.class.getMethod("bind", SocketAddress.class).invoke(channel, bindTo);
+            return channel;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unix domain sockets need JDK 16 or later");
+        } catch (NoSuchFieldException e) {
+            throw new IOException("unix domain sockets need JDK 16 or later");
+        } catch (NoSuchMethodException e) {
+            throw new IOException("unix domain sockets need JDK 16 or later");
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            final IOException failure = new IOException("can't listen on " + path + ": " + e.getCause());
+            failure.initCause(e.getCause());
+            throw failure;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reflectively too, file types need JDK 7+
+     * 
+     * @param path
+     * @return true if <code>path</code> is a socket file
+     * @throws IOException
+     *             if its type can't be read
+     */
+    private static boolean isSocket(String path) throws IOException {
+        try {
+            final Class<?> pathType = Class.forName("java.nio.file.Path");
+            final Class<?> linkOption = Class.forName("java.nio.file.LinkOption");
+            final Object options = java.lang.reflect.Array.newInstance(linkOption, 1);
+            java.lang.reflect.Array.set(options, 0, linkOption.getField("NOFOLLOW_LINKS").get(null));
+            final Object file = File.class.getMethod("toPath").invoke(new File(path));
+            final Object mode = Class.forName("java.nio.file.Files")
+                    .getMethod("getAttribute", pathType, String.class, options.getClass())
+                    .invoke(null, file, "unix:mode", options);
+            // S_IFMT and S_IFSOCK
+            return (((Integer) mode).intValue() & 0170000) == 0140000;
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            final IOException failure = new IOException("can't tell if " + path + " is a socket: " + e.getCause());
+            failure.initCause(e.getCause());
+            throw failure;
+        } catch (Exception e) {
+            throw new IOException("can't tell if " + path + " is a socket: " + e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                wakeupPending.set(false);
+
+                Connection flush;
+                while ((flush = flushes.poll()) != null) {
+                    flush.flush();
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    final Connection connection = (Connection) key.attachment();
+
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            running = false;
+            close();
+        }
+    }
+
+    /**
+     * Stop listening and close every connection
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * @return <code>[{connections, N}, {accepted, N}, {requests, N}]</code>
+     */
+    public OtpErlangList stats() {
+        return new OtpErlangList(new OtpErlangObject[] { prop("connections", open.get()),
+                                                        prop("accepted", accepted.get()),
+                                                        prop("requests", requests.get()) });
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = server.accept();
+
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+
+        if (unixPath == null) {
+            channel.socket().setTcpNoDelay(true);
+        }
+        final Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+        accepted.incrementAndGet();
+        open.incrementAndGet();
+        workers.execute(connection);
+    }
+
+    private void close() {
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            connection.close();
+        }
+        workers.shutdown();
+
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        if (unixPath != null) {
+            new File(unixPath).delete();
+        }
+    }
+
+    /**
+     * A client connection: frames are read on the I/O thread and run in
+     * order on the connection's own thread, replies are queued for the I/O
+     * thread to write from whichever thread completes them
+     */
+    private final class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private final BlockingQueue<byte[]> inbox = new LinkedBlockingQueue<byte[]>();
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<ByteBuffer>();
+        private SelectionKey key;
+        private ByteBuffer body;
+        // set by the worker when the connection should go once replies are out
+        private volatile boolean closeWhenFlushed;
+        private volatile boolean closed;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            ClientShim shim = null;
+
+            try {
+                while (true) {
+                    final byte[] frame = inbox.take();
+
+                    if (frame == CLOSED) {
+                        break;
+                    }
+                    final int id = ByteBuffer.wrap(frame).getInt(0);
+                    final OtpInputStream in = new OtpInputStream(frame, ID_SIZE, frame.length - ID_SIZE, 0);
+
+                    if (shim == null) {
+                        shim = create(id, in);
+
+                        if (shim == null) {
+                            break;
+                        }
+                        continue;
+                    }
+                    requests.incrementAndGet();
+
+                    try {
+                        shim.handle(null, new OtpErlangLong(id), in);
+                    } catch (OtpErlangDecodeException e) {
+                        send(id, OtpMessageHelper.error("bad request " + e.getMessage()));
+                    } catch (RuntimeException e) {
+                        // only this request failed, the shim carries on
+                        e.printStackTrace();
+                        send(id, OtpMessageHelper.error(e.toString()));
+                    } catch (Error e) {
+                        send(id, OtpMessageHelper.error(e.toString()));
+                        throw e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (shim != null) {
+                    shim.close();
+                }
+                // nothing reads its frames now, so it can't stay open
+                closeWhenFlushed = true;
+                wakeup(this);
+            }
+        }
+
+        /**
+         * Make the connection's shim from the first frame
+         * 
+         * @param id
+         * @param in
+         *            a create payload
+         * @return the shim, or null if there isn't one, the connection is
+         *         closed once the error reply is out
+         * @throws InterruptedException
+         */
+        private ClientShim create(final int id, final OtpInputStream in) throws InterruptedException {
+            OtpErlangObject failure;
+
+            try {
+                final ClientConfig config = Factory.clientConfig((OtpErlangTuple) in.read_any());
+                factory.awaitReady();
+                final ClientShim shim = new ClientShim(factory.newShimMbox(), config) {
+                    @Override void reply(OtpErlangPid from, OtpErlangObject ref, OtpErlangObject reply) {
+                        send((int) ((OtpErlangLong) ref).longValue(), reply);
+                    }
+                };
+                factory.track(shim, config.getOptions());
+                send(id, OK);
+                return shim;
+            } catch (IOException e) {
+                failure = OtpMessageHelper.error(e.toString());
+            } catch (OtpErlangRangeException e) {
+                failure = OtpMessageHelper.error(e.getMessage());
+            } catch (IllegalArgumentException e) {
+                failure = OtpMessageHelper.error(e.getMessage());
+            } catch (OtpErlangDecodeException e) {
+                failure = OtpMessageHelper.error("not a create payload");
+            } catch (ClassCastException e) {
+                failure = OtpMessageHelper.error("not a create payload");
+            }
+            send(id, failure);
+            closeWhenFlushed = true;
+            wakeup(this);
+            return null;
+        }
+
+        /**
+         * Queue a reply frame for the I/O thread, from any thread
+         * 
+         * @param id
+         * @param reply
+         */
+        private void send(final int id, final OtpErlangObject reply) {
+            if (closed) {
+                return;
+            }
+            final OtpOutputStream out = new OtpOutputStream();
+            out.write4BE(0);
+            out.write4BE(id);
+            out.write1(VERSION);
+            out.write_any(reply);
+            out.poke4BE(0, out.size() - HEADER_SIZE);
+            outbox.offer(ByteBuffer.wrap(out.toByteArray()));
+            wakeup(this);
+        }
+
+        private void read() throws IOException {
+            while (true) {
+                if (header.hasRemaining()) {
+                    if (channel.read(header) < 0) {
+                        close();
+                        return;
+                    }
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    final int length = header.getInt(0);
+
+                    if (length < ID_SIZE || length > MAX_FRAME) {
+                        throw new IOException("bad frame length " + length);
+                    }
+                    body = ByteBuffer.allocate(length);
+                }
+
+                if (body.hasRemaining() && channel.read(body) < 0) {
+                    close();
+                    return;
+                }
+                if (body.hasRemaining()) {
+                    return;
+                }
+                inbox.offer(body.array());
+                body = null;
+                header.clear();
+            }
+        }
+
+        /**
+         * Write what's queued, on the I/O thread
+         */
+        private void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void write() throws IOException {
+            ByteBuffer frame;
+
+            while ((frame = outbox.peek()) != null) {
+                channel.write(frame);
+
+                if (frame.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbox.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+
+            if (closeWhenFlushed) {
+                close();
+            }
+        }
+
+        /**
+         * On the I/O thread
+         */
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.remove(this);
+            open.decrementAndGet();
+            inbox.offer(CLOSED);
+            key.cancel();
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Have the I/O thread flush <code>connection</code>
+     */
+    private void wakeup(final Connection connection) {
+        flushes.offer(connection);
+
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+import com.basho.riak.client.raw.RawClient;
+import com.basho.riak.client.raw.http.HTTPClientAdapter;
+import com.basho.riak.client.raw.pbc.PBClientAdapter;
+import com.basho.riak.pbc.RiakClient;
+import com.basho.riak.pbc.RiakConnectionPool;
+
+/**
+ * The riak-java-client can't abort a call that's blocked waiting on Riak, so
+ * close the connections under it reflectively, the blocked call then fails,
+ * usually with an {@link java.io.IOException}. A pb client carries on with new
+ * connections after, an http client is no use after.
+ * 
+ * @author russell
+ * 
+ */
+public final class ClientAbort {
+
+    private static final Field PB_ADAPTER_CLIENT = field(PBClientAdapter.class, "client");
+    private static final Field HTTP_ADAPTER_CLIENT = field(HTTPClientAdapter.class, "client");
+    private static final Field PB_POOL = field(RiakClient.class, "pool");
+    private static final Field PB_IN_USE = field(RiakConnectionPool.class, "inUse");
+    private static final Method PB_CLOSE = connectionClose();
+
+    private ClientAbort() {}
+
+    private static Field field(Class<?> type, String name) {
+        try {
+            Field f = type.getDeclaredField(name);
+            f.setAccessible(true);
+            return f;
+        } catch (Exception e) {
+            System.out.println("blocked calls can't be aborted :: " + e);
+            return null;
+        }
+    }
+
+    private static Method connectionClose() {
+        try {
+            Method m = Class.forName("com.basho.riak.pbc.RiakConnection").getDeclaredMethod("close");
+            m.setAccessible(true);
+            return m;
+        } catch (Exception e) {
+            System.out.println("blocked calls can't be aborted :: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Close the connections <code>client</code> has in use, so calls blocked
+     * on them return
+     * 
+     * @param client
+     * @return false if <code>client</code> couldn't be aborted
+     */
+    public static boolean abort(RawClient client) {
+        return abort(client, false);
+    }
+
+    /**
+     * {@link #abort(RawClient)} <code>client</code> if it can be used after
+     * 
+     * @param client
+     * @return false if <code>client</code> couldn't be aborted
+     */
+    public static boolean abortCalls(RawClient client) {
+        return abort(client, true);
+    }
+
+    private static boolean abort(RawClient client, boolean keepUsable) {
+        try {
+            if (client instanceof LimitedClient) {
+                return abort(((LimitedClient) client).getDelegate(), keepUsable);
+            } else if (client instanceof ClusterClient) {
+                return !keepUsable && ((ClusterClient) client).abort();
+            } else if (client instanceof BinaryPbClient) {
+                return abort(((BinaryPbClient) client).getClient());
+            } else if (client instanceof PBClientAdapter && PB_ADAPTER_CLIENT != null) {
+                return abort((RiakClient) PB_ADAPTER_CLIENT.get(client));
+            } else if (client instanceof HTTPClientAdapter && HTTP_ADAPTER_CLIENT != null && !keepUsable) {
+                // closes every connection, in use or not
+                ((com.basho.riak.client.http.RiakClient) HTTP_ADAPTER_CLIENT.get(client)).getHttpClient()
+                        .getConnectionManager().shutdown();
+                return true;
+            }
+        } catch (Exception e) {
+            System.out.println("failed to abort " + client + " :: " + e);
+        }
+        return false;
+    }
+
+    private static boolean abort(RiakClient client) throws Exception {
+        if (PB_POOL == null || PB_IN_USE == null || PB_CLOSE == null) {
+            return false;
+        }
+        final Collection<?> inUse = (Collection<?>) PB_IN_USE.get(PB_POOL.get(client));
+
+        for (Object connection : inUse) {
+            PB_CLOSE.invoke(connection);
+        }
+        return true;
+    }
+}
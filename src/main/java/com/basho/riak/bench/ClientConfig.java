@@ -13,6 +13,10 @@
  */
 package com.basho.riak.bench;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * @author russell
  * 
@@ -23,6 +27,8 @@ public class ClientConfig {
     private final int port;
     private final Transport transport;
     private final int bufferSizeKb;
+    private final ShimOptions options;
+    private final List<Endpoint> endpoints;
 
     /**
      * @param host
@@ -31,10 +37,48 @@ public class ClientConfig {
      * @param bufferSizeKb
      */
     public ClientConfig(String host, int port, Transport transport, int bufferSizeKb) {
-        this.host = host;
-        this.port = port;
+        this(host, port, transport, bufferSizeKb, ShimOptions.defaults());
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param transport
+     * @param bufferSizeKb
+     * @param options
+     *            for any transport specific settings
+     */
+    public ClientConfig(String host, int port, Transport transport, int bufferSizeKb, ShimOptions options) {
+        this(Collections.singletonList(new Endpoint(host, port)), transport, bufferSizeKb, options);
+    }
+
+    /**
+     * @param endpoints
+     *            the Riak nodes to balance requests over, the first is the
+     *            config's host and port
+     * @param transport
+     * @param bufferSizeKb
+     * @param options
+     *            for any transport specific settings
+     */
+    public ClientConfig(List<Endpoint> endpoints, Transport transport, int bufferSizeKb, ShimOptions options) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("no endpoints");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<Endpoint>(endpoints));
+        this.host = endpoints.get(0).getHost();
+        this.port = endpoints.get(0).getPort();
         this.transport = transport;
         this.bufferSizeKb = bufferSizeKb;
+        this.options = options;
+    }
+
+    /**
+     * @param endpoint
+     * @return a copy of this config for just <code>endpoint</code>
+     */
+    public ClientConfig forEndpoint(Endpoint endpoint) {
+        return new ClientConfig(endpoint.getHost(), endpoint.getPort(), transport, bufferSizeKb, options);
     }
 
     /**
@@ -51,6 +95,20 @@ public class ClientConfig {
         return port;
     }
 
+    /**
+     * @return the endpoints
+     */
+    public synchronized List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return true if there is more than one endpoint
+     */
+    public synchronized boolean isCluster() {
+        return endpoints.size() > 1;
+    }
+
     /**
      * @return the transport
      */
@@ -64,4 +122,18 @@ public class ClientConfig {
     public synchronized int getBufferSizeKb() {
         return bufferSizeKb;
     }
+
+    /**
+     * @return the options' {@link KeyEncoding} as it applies to the transport
+     */
+    public synchronized KeyEncoding getKeyEncoding() {
+        return options.getKeyEncoding().forTransport(transport);
+    }
+
+    /**
+     * @return the options
+     */
+    public synchronized ShimOptions getOptions() {
+        return options;
+    }
 }
@@ -13,13 +13,24 @@
  */
 package com.basho.riak.bench;
 
+import static com.basho.riak.bench.OtpMessageHelper.prop;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.basho.riak.client.http.RiakConfig;
 import com.basho.riak.client.raw.RawClient;
 import com.basho.riak.client.raw.http.HTTPClientAdapter;
 import com.basho.riak.client.raw.pbc.PBClientAdapter;
 import com.basho.riak.pbc.RiakClient;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
 
 /**
  * @author russell
@@ -27,31 +38,423 @@ import com.basho.riak.pbc.RiakClient;
  */
 public class ClientFactory {
 
+    private static final Map<String, ClientPool> SHARED_POOLS = new HashMap<String, ClientPool>();
+    private static final Map<String, MemoryStore> MEMORY_STORES = new HashMap<String, MemoryStore>();
+    private static final Map<String, AsyncPbClient> ASYNC_CLIENTS = new HashMap<String, AsyncPbClient>();
+    private static final Map<String, VClockCache> VCLOCK_CACHES = new HashMap<String, VClockCache>();
+    private static final Map<String, EndpointStats> ENDPOINT_STATS = new HashMap<String, EndpointStats>();
+    private static final Map<String, SpareClients> SPARE_CLIENTS = new HashMap<String, SpareClients>();
+    private static final Map<String, ConcurrencyLimit> LIMITS = new HashMap<String, ConcurrencyLimit>();
+
     /**
      * @param config
-     * @return
+     * @return a client for the config's node, or a {@link ClusterClient} if it
+     *         has more than one (except for {@link Transport#MEMORY}, where
+     *         every shim on the first endpoint shares a store anyway), held
+     *         to the node's {@link ConcurrencyLimit} if the options set one
      * @throws IOException
      */
     public static RawClient newClient(ClientConfig config) throws IOException {
         RawClient client = null;
         Transport transport = config.getTransport();
 
+        if (config.isCluster() && transport != Transport.MEMORY) {
+            return new ClusterClient(config);
+        }
+
         switch (transport) {
         case PB:
-            client = new PBClientAdapter(new RiakClient(config.getHost(), config.getPort(), config.getBufferSizeKb()));
+            final RiakClient pbClient = new RiakClient(config.getHost(), config.getPort(), config.getBufferSizeKb());
+
+            if (config.getKeyEncoding() == KeyEncoding.BINARY) {
+                client = new BinaryPbClient(pbClient);
+            } else {
+                client = new PBClientAdapter(pbClient);
+            }
             break;
         case HTTP:
             RiakConfig conf = new RiakConfig(makeUrl(config.getHost(), config.getPort()));
             com.basho.riak.client.http.RiakClient del = new com.basho.riak.client.http.RiakClient(conf);
             client = new HTTPClientAdapter(del);
             break;
+        case MEMORY:
+            client = new MemoryClient(memoryStore(config));
+            break;
         default:
             throw new RuntimeException("unknown transport " + transport);
         }
 
+        if (config.getOptions().getLimit() != null && transport != Transport.MEMORY) {
+            client = new LimitedClient(client, concurrencyLimit(config), config.getOptions().getLimitWaitMs());
+        }
+        return client;
+    }
+
+    /**
+     * Get the {@link ConcurrencyLimit} for the config's host and port, shared
+     * by every client of the node, creating it on first use. The first
+     * caller's options decide the algorithm and bounds.
+     * 
+     * @param config
+     * @return the node's limit
+     */
+    private static ConcurrencyLimit concurrencyLimit(ClientConfig config) {
+        final String key = config.getHost() + ":" + config.getPort();
+
+        synchronized (LIMITS) {
+            ConcurrencyLimit limit = LIMITS.get(key);
+
+            if (limit == null) {
+                final ShimOptions options = config.getOptions();
+                limit = new ConcurrencyLimit(options.getLimit(), options.getLimitInitial(), options.getLimitMax());
+                LIMITS.put(key, limit);
+            }
+            return limit;
+        }
+    }
+
+    /**
+     * @return <code>[{"host:port", [{algorithm, Algorithm}, {limit, N}, {in_flight, N}, {waiting, N}, {rejected, N}, {rtt, Us}, {base_rtt, Us}]}]</code>
+     *         for every node with a concurrency limit
+     */
+    public static OtpErlangList concurrencyLimitStats() {
+        synchronized (LIMITS) {
+            final List<OtpErlangObject> limits = new ArrayList<OtpErlangObject>(LIMITS.size());
+
+            for (Map.Entry<String, ConcurrencyLimit> e : LIMITS.entrySet()) {
+                final ConcurrencyLimit limit = e.getValue();
+                limits.add(new OtpErlangTuple(new OtpErlangObject[] {
+                        new OtpErlangString(e.getKey()),
+                        new OtpErlangList(new OtpErlangObject[] {
+                                new OtpErlangTuple(new OtpErlangObject[] {
+                                        new OtpErlangAtom("algorithm"),
+                                        new OtpErlangAtom(limit.getAlgorithm().name().toLowerCase()) }),
+                                prop("limit", limit.getLimit()),
+                                prop("in_flight", limit.getInFlight()),
+                                prop("waiting", limit.getWaiting()),
+                                prop("rejected", limit.getRejected()),
+                                prop("rtt", limit.getRecentRttMicros()),
+                                prop("base_rtt", limit.getBaseRttMicros()) }) }));
+            }
+            return new OtpErlangList(limits.toArray(new OtpErlangObject[limits.size()]));
+        }
+    }
+
+    /**
+     * A client with its client id set, taken from the {@link SpareClients}
+     * for the config's nodes if the options ask for spares
+     * 
+     * @param config
+     * @return a connected client
+     * @throws IOException
+     */
+    public static RawClient connectedClient(ClientConfig config) throws IOException {
+        final int spares = config.getOptions().getSpareClients();
+
+        if (spares > 0 && config.getTransport() != Transport.MEMORY) {
+            return spareClients(config, spares).take();
+        }
+        final RawClient client = newClient(config);
+        client.generateAndSetClientId();
         return client;
     }
 
+    /**
+     * Get the {@link SpareClients} for every shim that talks to the same
+     * nodes over the same transport with the same key encoding, creating it
+     * (and starting to connect) on first use. The first caller decides how
+     * many.
+     * 
+     * @param config
+     * @param target
+     *            how many spares if they're created
+     * @return the spares for <code>config</code>
+     */
+    private static SpareClients spareClients(ClientConfig config, int target) {
+        final String key = poolKey(config) + "/" + config.getKeyEncoding().name().toLowerCase();
+
+        synchronized (SPARE_CLIENTS) {
+            SpareClients spares = SPARE_CLIENTS.get(key);
+
+            if (spares == null) {
+                spares = new SpareClients(config, target);
+                SPARE_CLIENTS.put(key, spares);
+            }
+            return spares;
+        }
+    }
+
+    /**
+     * @return <code>[{"host:port/transport/encoding", [{ready, N}, {hits, N}, {misses, N}, {errors, N}]}]</code>
+     *         for every set of spare clients
+     */
+    public static OtpErlangList spareClientStats() {
+        synchronized (SPARE_CLIENTS) {
+            final List<OtpErlangObject> spares = new ArrayList<OtpErlangObject>(SPARE_CLIENTS.size());
+
+            for (Map.Entry<String, SpareClients> e : SPARE_CLIENTS.entrySet()) {
+                final SpareClients s = e.getValue();
+                spares.add(new OtpErlangTuple(new OtpErlangObject[] {
+                        new OtpErlangString(e.getKey()),
+                        new OtpErlangList(new OtpErlangObject[] { prop("ready", s.getReady()), prop("hits", s.getHits()),
+                                                                 prop("misses", s.getMisses()),
+                                                                 prop("errors", s.getErrors()) }) }));
+            }
+            return new OtpErlangList(spares.toArray(new OtpErlangObject[spares.size()]));
+        }
+    }
+
+    /**
+     * Get the {@link ClientPool} shared by every shim that talks to the same
+     * host, port and transport, creating it on first use. The first caller
+     * decides the size.
+     * 
+     * @param config
+     * @param size
+     *            the number of connections if the pool is created
+     * @return the shared pool for <code>config</code>
+     * @throws IOException
+     */
+    public static ClientPool sharedPool(ClientConfig config, int size) throws IOException {
+        final String key = poolKey(config);
+
+        synchronized (SHARED_POOLS) {
+            ClientPool pool = SHARED_POOLS.get(key);
+
+            if (pool == null) {
+                pool = new ClientPool(config, size);
+                SHARED_POOLS.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * @return <code>[{"host:port/transport", [{size, N}, {idle, N}]}]</code>
+     *         for every shared pool
+     */
+    public static OtpErlangList sharedPoolStats() {
+        synchronized (SHARED_POOLS) {
+            final List<OtpErlangObject> pools = new ArrayList<OtpErlangObject>(SHARED_POOLS.size());
+
+            for (Map.Entry<String, ClientPool> e : SHARED_POOLS.entrySet()) {
+                final ClientPool pool = e.getValue();
+                pools.add(new OtpErlangTuple(new OtpErlangObject[] {
+                        new OtpErlangString(e.getKey()),
+                        new OtpErlangList(new OtpErlangObject[] { prop("size", pool.getSize()),
+                                                                 prop("idle", pool.getIdle()) }) }));
+            }
+            return new OtpErlangList(pools.toArray(new OtpErlangObject[pools.size()]));
+        }
+    }
+
+    /**
+     * Get the {@link AsyncPbClient} shared by every async shim that talks to
+     * the same host and port, creating it on first use. The first caller's
+     * options decide the number of connections.
+     * 
+     * @param config
+     *            must be for {@link Transport#PB}
+     * @return the shared client for <code>config</code>
+     * @throws IOException
+     */
+    public static AsyncPbClient asyncClient(ClientConfig config) throws IOException {
+        if (config.getTransport() != Transport.PB) {
+            throw new IllegalArgumentException("async needs the pb transport, not " + config.getTransport());
+        }
+
+        final String key = config.getHost() + ":" + config.getPort();
+
+        synchronized (ASYNC_CLIENTS) {
+            AsyncPbClient client = ASYNC_CLIENTS.get(key);
+
+            if (client == null) {
+                client = new AsyncPbClient(config.getHost(), config.getPort(),
+                                           config.getOptions().getAsyncConnections());
+                ASYNC_CLIENTS.put(key, client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * @return <code>[{"host:port", [{connections, N}, {outstanding, N}]}]</code>
+     *         for every async client
+     */
+    public static OtpErlangList asyncClientStats() {
+        synchronized (ASYNC_CLIENTS) {
+            final List<OtpErlangObject> clients = new ArrayList<OtpErlangObject>(ASYNC_CLIENTS.size());
+
+            for (Map.Entry<String, AsyncPbClient> e : ASYNC_CLIENTS.entrySet()) {
+                final AsyncPbClient client = e.getValue();
+                clients.add(new OtpErlangTuple(new OtpErlangObject[] {
+                        new OtpErlangString(e.getKey()),
+                        new OtpErlangList(new OtpErlangObject[] { prop("connections", client.getConnections()),
+                                                                 prop("outstanding", client.getOutstanding()) }) }));
+            }
+            return new OtpErlangList(clients.toArray(new OtpErlangObject[clients.size()]));
+        }
+    }
+
+    /**
+     * Get the {@link VClockCache} for the config's host and port, shared by
+     * every caching shim for that endpoint. The first caller's options decide
+     * the size.
+     * 
+     * @param config
+     * @return the cache
+     */
+    public static VClockCache vclockCache(ClientConfig config) {
+        final String key = config.getHost() + ":" + config.getPort();
+        final ShimOptions options = config.getOptions();
+
+        synchronized (VCLOCK_CACHES) {
+            VClockCache cache = VCLOCK_CACHES.get(key);
+
+            if (cache == null) {
+                cache = new VClockCache(options.getCacheShards(), options.getCacheSize(), options.isCacheValues());
+                VCLOCK_CACHES.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * @return <code>[{"host:port", [{entries, N}, {hits, N}, {misses, N}, {evictions, N}, {conflicts, N}]}]</code>
+     *         for every vclock cache
+     */
+    public static OtpErlangList vclockCacheStats() {
+        synchronized (VCLOCK_CACHES) {
+            final List<OtpErlangObject> caches = new ArrayList<OtpErlangObject>(VCLOCK_CACHES.size());
+
+            for (Map.Entry<String, VClockCache> e : VCLOCK_CACHES.entrySet()) {
+                final VClockCache cache = e.getValue();
+                caches.add(new OtpErlangTuple(new OtpErlangObject[] {
+                        new OtpErlangString(e.getKey()),
+                        new OtpErlangList(new OtpErlangObject[] { prop("entries", cache.getEntries()),
+                                                                 prop("hits", cache.getHits()),
+                                                                 prop("misses", cache.getMisses()),
+                                                                 prop("evictions", cache.getEvictions()),
+                                                                 prop("conflicts", cache.getConflicts()) }) }));
+            }
+            return new OtpErlangList(caches.toArray(new OtpErlangObject[caches.size()]));
+        }
+    }
+
+    /**
+     * Get the {@link EndpointStats} for <code>endpoint</code>, shared by every
+     * {@link ClusterClient} that uses it
+     * 
+     * @param endpoint
+     * @return the stats
+     */
+    public static EndpointStats endpointStats(Endpoint endpoint) {
+        final String key = endpoint.toString();
+
+        synchronized (ENDPOINT_STATS) {
+            EndpointStats stats = ENDPOINT_STATS.get(key);
+
+            if (stats == null) {
+                stats = new EndpointStats();
+                ENDPOINT_STATS.put(key, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * @return <code>[{"host:port", [{requests, N}, {errors, N}, {outstanding, N}, {up, Bool}, {p50, Us}, {p99, Us}, {max, Us}, {hedged, N}, {hedge_wins, N}]}]</code>
+     *         for every node a {@link ClusterClient} has used
+     */
+    public static OtpErlangList endpointStats() {
+        final long now = System.currentTimeMillis();
+
+        synchronized (ENDPOINT_STATS) {
+            final List<OtpErlangObject> nodes = new ArrayList<OtpErlangObject>(ENDPOINT_STATS.size());
+
+            for (Map.Entry<String, EndpointStats> e : ENDPOINT_STATS.entrySet()) {
+                final EndpointStats stats = e.getValue();
+                final LatencyHistogram latency = stats.getLatency();
+                nodes.add(new OtpErlangTuple(new OtpErlangObject[] {
+                        new OtpErlangString(e.getKey()),
+                        new OtpErlangList(new OtpErlangObject[] {
+                                prop("requests", stats.getRequests()),
+                                prop("errors", stats.getErrors()),
+                                prop("outstanding", stats.getOutstanding()),
+                                new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("up"),
+                                                                          new OtpErlangAtom(stats.isUp(now)) }),
+                                prop("p50", latency.getValueAtPercentile(50.0)),
+                                prop("p99", latency.getValueAtPercentile(99.0)),
+                                prop("max", latency.getMax()),
+                                prop("hedged", stats.getHedged()),
+                                prop("hedge_wins", stats.getHedgeWins()) }) }));
+            }
+            return new OtpErlangList(nodes.toArray(new OtpErlangObject[nodes.size()]));
+        }
+    }
+
+    /**
+     * Get the {@link MemoryStore} for the config's host and port, so shims
+     * "connected" to the same endpoint see the same data. The first caller's
+     * options decide the limits.
+     * 
+     * @param config
+     * @return the store
+     */
+    private static MemoryStore memoryStore(ClientConfig config) {
+        final String key = config.getHost() + ":" + config.getPort();
+        final ShimOptions options = config.getOptions();
+
+        synchronized (MEMORY_STORES) {
+            MemoryStore store = MEMORY_STORES.get(key);
+
+            if (store == null) {
+                store = new MemoryStore(options.getMemoryShards(), options.getMemoryMaxKeys(),
+                                        options.getMemoryMaxBytes());
+                MEMORY_STORES.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * @return <code>[{"host:port", [{keys, N}, {bytes, N}, {evictions, N}, {conflicts, N}]}]</code>
+     *         for every memory store
+     */
+    public static OtpErlangList memoryStoreStats() {
+        synchronized (MEMORY_STORES) {
+            final List<OtpErlangObject> stores = new ArrayList<OtpErlangObject>(MEMORY_STORES.size());
+
+            for (Map.Entry<String, MemoryStore> e : MEMORY_STORES.entrySet()) {
+                final MemoryStore store = e.getValue();
+                stores.add(new OtpErlangTuple(new OtpErlangObject[] {
+                        new OtpErlangString(e.getKey()),
+                        new OtpErlangList(new OtpErlangObject[] { prop("keys", store.getKeys()),
+                                                                 prop("bytes", store.getBytes()),
+                                                                 prop("evictions", store.getEvictions()),
+                                                                 prop("conflicts", store.getConflicts()) }) }));
+            }
+            return new OtpErlangList(stores.toArray(new OtpErlangObject[stores.size()]));
+        }
+    }
+
+    /**
+     * @param config
+     * @return the pool key for <code>config</code>, buffer size is ignored,
+     *         every endpoint counts
+     */
+    private static String poolKey(ClientConfig config) {
+        final StringBuilder key = new StringBuilder();
+
+        for (Endpoint endpoint : config.getEndpoints()) {
+            if (key.length() > 0) {
+                key.append(",");
+            }
+            key.append(endpoint);
+        }
+        return key.append("/").append(config.getTransport().name().toLowerCase()).toString();
+    }
+
     /**
      * @param host
      * @param port
@@ -0,0 +1,92 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.basho.riak.client.raw.RawClient;
+
+/**
+ * A fixed size pool of {@link RawClient}s, all created up front from the same
+ * {@link ClientConfig}. Borrowing blocks when every client is in use.
+ * 
+ * @author russell
+ * 
+ */
+public class ClientPool {
+
+    private final BlockingQueue<RawClient> clients;
+    private final int size;
+
+    /**
+     * @param config
+     *            for each client
+     * @param size
+     *            how many clients to create
+     * @throws IOException
+     */
+    public ClientPool(ClientConfig config, int size) throws IOException {
+        this.size = size;
+        this.clients = new ArrayBlockingQueue<RawClient>(size);
+
+        for (int i = 0; i < size; i++) {
+            RawClient client = ClientFactory.newClient(config);
+            client.generateAndSetClientId();
+            clients.add(client);
+        }
+    }
+
+    /**
+     * @return a client, waiting for one to be released if need be
+     * @throws InterruptedException
+     */
+    public RawClient borrow() throws InterruptedException {
+        return clients.take();
+    }
+
+    /**
+     * @param client
+     *            a client previously borrowed from this pool
+     */
+    public void release(RawClient client) {
+        clients.offer(client);
+    }
+
+    /**
+     * @return the number of clients in the pool
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of clients not currently borrowed
+     */
+    public int getIdle() {
+        return clients.size();
+    }
+
+    /**
+     * Shutdown all the clients that are currently idle
+     */
+    public void shutdown() {
+        RawClient client;
+
+        while ((client = clients.poll()) != null) {
+            client.shutdown();
+        }
+    }
+}
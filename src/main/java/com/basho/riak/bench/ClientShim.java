@@ -13,22 +13,30 @@
  */
 package com.basho.riak.bench;
 
-import static com.basho.riak.bench.OtpMessageHelper.reply;
-
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.basho.riak.client.builders.RiakObjectBuilder;
 import com.basho.riak.client.raw.RawClient;
-import com.basho.riak.client.raw.RiakResponse;
-import com.basho.riak.client.raw.StoreMeta;
-import com.ericsson.otp.erlang.OtpErlangAtom;
 import com.ericsson.otp.erlang.OtpErlangDecodeException;
 import com.ericsson.otp.erlang.OtpErlangExit;
 import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangPid;
-import com.ericsson.otp.erlang.OtpErlangString;
 import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
 import com.ericsson.otp.erlang.OtpMbox;
 
 /**
@@ -40,9 +48,45 @@ import com.ericsson.otp.erlang.OtpMbox;
  */
 public class ClientShim implements Runnable {
 
+    private static final OtpErlangObject OK = Replies.OK;
+
+    // sends blocking requests' timeout replies, one thread for every shim
+    private static final ScheduledThreadPoolExecutor DEADLINES = newDeadlineTimer();
+
     private final OtpMbox mbox;
-    private final RawClient rawClient;
-    private final String host;
+    private final ClientConfig config;
+    // replaced once a deadline passes on a call blocked on it
+    private volatile RawClient rawClient;
+    private final ClientPool clientPool;
+    private final boolean ownsPool;
+    private final ExecutorService pipelineExecutor;
+    private final AsyncOps asyncOps;
+    private final Semaphore asyncPermits;
+    private final VClockCache cache;
+    private final SyncOps ops;
+    private final KeyGenerator keyGenerator;
+    private final ValueGenerator valueGenerator;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LatencyStats stats = new LatencyStats();
+    private final Replies replies;
+    private final Backlog backlog;
+    private final KeyEncoding keyEncoding;
+    private final long timeoutMs;
+
+    // reused for every message, per thread when pipelined
+    private final Args argsHolder;
+    private final ThreadLocal<Args> pipelineArgs = new ThreadLocal<Args>() {
+        @Override protected Args initialValue() {
+            return new Args(keyEncoding);
+        }
+    };
+    private final ThreadLocal<List<Args>> batchArgs = new ThreadLocal<List<Args>>() {
+        @Override protected List<Args> initialValue() {
+            return new ArrayList<Args>();
+        }
+    };
+    // async requests outlive the message, so their args are recycled
+    private final Queue<Args> asyncArgs = new ConcurrentLinkedQueue<Args>();
 
     /**
      * @param mbox
@@ -60,11 +104,116 @@ public class ClientShim implements Runnable {
      */
     public ClientShim(final OtpMbox mbox, String host, int port, int bufferSizeKb, Transport transport)
             throws IOException {
+        this(mbox, host, port, bufferSizeKb, transport, ShimOptions.defaults());
+    }
+
+    /**
+     * @param mbox
+     *            the {@link OtpMbox} that will receive messages from
+     *            basho_bench for this client
+     * @param host
+     *            the host to connect to
+     * @param port
+     *            the port to connect to
+     * @param bufferSizeKb
+     *            the pb buffer size
+     * @param transport
+     *            the {@link Transport} to create (http/pb)
+     * @param options
+     *            the {@link ShimOptions} from the create message
+     * @throws IOException
+     */
+    public ClientShim(final OtpMbox mbox, String host, int port, int bufferSizeKb, Transport transport,
+            ShimOptions options) throws IOException {
+        this(mbox, new ClientConfig(host, port, transport, bufferSizeKb, options));
+    }
+
+    /**
+     * @param mbox
+     *            the {@link OtpMbox} that will receive messages from
+     *            basho_bench for this client
+     * @param clientConfig
+     *            the node(s) to connect to, how, and the {@link ShimOptions}
+     *            from the create message
+     * @throws IOException
+     */
+    public ClientShim(final OtpMbox mbox, final ClientConfig clientConfig) throws IOException {
+        this.mbox = mbox;
+        this.config = clientConfig;
+        this.replies = new Replies(mbox.self());
+        final ShimOptions options = clientConfig.getOptions();
+        this.backlog = new Backlog(mbox, options.getHighWater());
+        this.keyEncoding = clientConfig.getKeyEncoding();
+        this.timeoutMs = options.getTimeoutMs();
+        this.argsHolder = new Args(keyEncoding);
+
+        if (options.isChained()) {
+            // just this shim's keys, its updates chain off its own stores
+            this.cache = new VClockCache(1, options.getChainUpdates(), false);
+        } else if (options.isCached()) {
+            this.cache = ClientFactory.vclockCache(clientConfig);
+        } else {
+            this.cache = null;
+        }
+
+        if (options.isAsync()) {
+            // up to async requests in flight on the node's non-blocking client
+            this.rawClient = null;
+            this.clientPool = null;
+            this.ownsPool = false;
+            this.asyncOps = new AsyncOps(ClientFactory.asyncClient(clientConfig), cache);
+            this.asyncPermits = new Semaphore(options.getAsync());
+        } else if (options.isPooled()) {
+            // borrow a connection per op from the pool for this host/port
+            this.rawClient = null;
+            this.clientPool = ClientFactory.sharedPool(clientConfig, options.getPoolSize());
+            this.ownsPool = false;
+            this.asyncOps = null;
+            this.asyncPermits = null;
+        } else if (options.isPipelined()) {
+            // up to pipeline requests in flight, each on its own connection
+            this.rawClient = null;
+            this.clientPool = new ClientPool(clientConfig, options.getPipeline());
+            this.ownsPool = true;
+            this.asyncOps = null;
+            this.asyncPermits = null;
+        } else {
+            this.rawClient = ClientFactory.connectedClient(clientConfig);
+            this.clientPool = null;
+            this.ownsPool = false;
+            this.asyncOps = null;
+            this.asyncPermits = null;
+        }
+        this.pipelineExecutor = options.isPipelined() && !options.isAsync() ? Executors.newFixedThreadPool(options.getPipeline()) : null;
+        this.ops = new SyncOps(cache, clientConfig.getHost());
+        this.keyGenerator = options.getKeyGenerator();
+        this.valueGenerator = options.getValueGenerator();
+    }
+
+    /**
+     * A shim around an existing client, for benchmarking the shim itself
+     * 
+     * @param mbox
+     * @param rawClient
+     */
+    ClientShim(final OtpMbox mbox, final RawClient rawClient) {
         this.mbox = mbox;
-        final ClientConfig clientConfig = new ClientConfig(host, port, transport, bufferSizeKb);
-        this.rawClient = ClientFactory.newClient(clientConfig);
-        this.rawClient.generateAndSetClientId();
-        this.host = host;
+        this.config = null;
+        this.replies = new Replies(mbox.self());
+        this.backlog = new Backlog(mbox, 0);
+        this.keyEncoding = KeyEncoding.BASE64;
+        this.timeoutMs = 0;
+        this.argsHolder = new Args(keyEncoding);
+        this.rawClient = rawClient;
+        this.clientPool = null;
+        this.ownsPool = false;
+        this.pipelineExecutor = null;
+        this.asyncOps = null;
+        this.asyncPermits = null;
+        this.cache = null;
+        this.ops = new SyncOps(null, "local");
+        this.keyGenerator = null;
+        this.valueGenerator = null;
     }
 
     /*
@@ -75,118 +224,588 @@ public class ClientShim implements Runnable {
     public void run() {
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                OtpErlangTuple msg = (OtpErlangTuple) mbox.receive();
+                handle(mbox.receiveBuf());
+            } catch (OtpErlangExit e) {
+                throw new RuntimeException(e);
+            } catch (OtpErlangDecodeException e) {
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        close();
+    }
+
+    /**
+     * Handle the next message if there is one, without blocking on an empty
+     * mailbox. For running the shim cooperatively, see
+     * {@link CooperativeShim}.
+     * 
+     * @return false if the mailbox was empty
+     * @throws OtpErlangExit
+     * @throws OtpErlangDecodeException
+     * @throws InterruptedException
+     */
+    boolean poll() throws OtpErlangExit, OtpErlangDecodeException, InterruptedException {
+        if (MailboxProbe.depth(mbox) <= 0) {
+            return false;
+        }
+        // only this shim takes from the mailbox, so this won't block
+        handle(mbox.receiveBuf());
+        return true;
+    }
+
+    /**
+     * Handle a single request. If it fails the sender is sent
+     * <code>{error, Reason}</code> before the failure is passed on.
+     * 
+     * @param in
+     *            the raw message
+     * @throws OtpErlangDecodeException
+     * @throws InterruptedException
+     */
+    void handle(final OtpInputStream in) throws OtpErlangDecodeException, InterruptedException {
+        // {From, {Op, Args}} or {From, Ref, {Op, Args}}, read straight
+        // from the external format, no OtpErlangObject tree
+        final int arity = in.read_tuple_head();
+        final OtpErlangPid from = in.read_pid();
+        final OtpErlangObject ref = arity == 3 ? in.read_any() : null;
 
-                OtpErlangPid from = (OtpErlangPid) msg.elementAt(0);
-                OtpErlangTuple payload = (OtpErlangTuple) msg.elementAt(1);
-                OtpErlangAtom operation = (OtpErlangAtom) payload.elementAt(0);
-                OtpErlangList args = (OtpErlangList) payload.elementAt(1);
+        try {
+            handle(from, ref, in);
+        } catch (OtpErlangDecodeException e) {
+            reply(from, ref, OtpMessageHelper.error("bad request " + e.getMessage()));
+            throw e;
+        } catch (RuntimeException e) {
+            reply(from, ref, OtpMessageHelper.error(e.toString()));
+            throw e;
+        } catch (Error e) {
+            reply(from, ref, OtpMessageHelper.error(e.toString()));
+            throw e;
+        }
+    }
 
-                final Op op = Op.fromString(operation.atomValue());
+    /**
+     * Handle a single request whose sender and ref are already known, see
+     * {@link Bridge}
+     * 
+     * @param from
+     *            passed on to {@link #reply(OtpErlangPid, OtpErlangObject, OtpErlangObject)}
+     * @param ref
+     *            may be null
+     * @param in
+     *            positioned at <code>{Op, Args}</code>
+     * @throws OtpErlangDecodeException
+     * @throws InterruptedException
+     */
+    void handle(final OtpErlangPid from, final OtpErlangObject ref, final OtpInputStream in)
+            throws OtpErlangDecodeException, InterruptedException {
+        in.read_tuple_head();
+        final Op op = Op.fromString(in.read_atom());
 
-                OtpErlangObject reply = null;
+        if (!backlog.admit()) {
+            // too far behind, say so rather than queue it, args unread
+            reply(from, ref, Replies.ERROR_OVERLOADED);
+            return;
+        }
+        boolean handed = false;
 
-                // TODO really could be just Args, amirite?
-                final PutArgs putArgs = PutArgs.from(args);
-                final GetArgs getArgs = GetArgs.from(args);
+        try {
+            dispatch(from, ref, op, in);
+            handed = true;
+        } finally {
+            if (!handed) {
+                // failed before a reply could be sent, the caller replies
+                backlog.done();
+            }
+        }
+    }
 
-                RiakObjectBuilder rob = RiakObjectBuilder.newBuilder(putArgs.getBucket(), putArgs.getKey());
+    /**
+     * Run an admitted request on the shim's client, pool or async client. If
+     * this throws the request has not been replied to.
+     * 
+     * @param from
+     * @param ref
+     *            may be null
+     * @param op
+     * @param in
+     *            the rest of the message, positioned at the args
+     * @throws OtpErlangDecodeException
+     * @throws InterruptedException
+     */
+    private void dispatch(final OtpErlangPid from, final OtpErlangObject ref, final Op op, final OtpInputStream in)
+            throws OtpErlangDecodeException, InterruptedException {
+        if (asyncOps != null) {
+            performAsync(from, ref, op, in);
+        } else if (clientPool == null) {
+            perform(from, ref, op, in, rawClient, argsHolder);
+        } else if (pipelineExecutor == null) {
+            final RawClient client = clientPool.borrow();
 
-                switch (op) {
-                case GET:
-                    try {
+            try {
+                perform(from, ref, op, in, client, argsHolder);
+            } finally {
+                clientPool.release(client);
+            }
+        } else {
+            // blocks once pipeline requests are outstanding
+            final RawClient client = clientPool.borrow();
 
-                        RiakResponse response = rawClient.fetch(getArgs.getBucket(), getArgs.getKey(), getArgs.getR());
-
-                        if (response == null || (!response.hasValue() && response.getVclock() == null)) {
-                            // send not found
-                            reply = reply("ok", "notfound");
-                        } else {
-                            // send found message back
-                            reply = reply("ok", "found");
-                        }
-                    } catch (Exception e) {
-                        // send error message
-                        reply = errorReply(e, putArgs, getArgs);
-                    }
-                    break;
-                case PUT:
+            pipelineExecutor.execute(new Runnable() {
+                public void run() {
                     try {
-                        rawClient.store(rob.withValue(putArgs.getValue()).build(),
-                                        new StoreMeta(putArgs.getW(), putArgs.getDw(), null, false, false, false));
-                        reply = reply("ok");
-                    } catch (Exception e) {
-                        reply = errorReply(e, putArgs, getArgs);
+                        perform(from, ref, op, in, client, pipelineArgs.get());
+                    } catch (OtpErlangDecodeException e) {
+                        send(from, ref, OtpMessageHelper.error("bad request " + e.getMessage()));
+                    } catch (RuntimeException e) {
+                        // don't leave the caller waiting on a reply that won't come
+                        e.printStackTrace();
+                        send(from, ref, OtpMessageHelper.error(e.toString()));
+                    } finally {
+                        clientPool.release(client);
                     }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the shim's mailbox
+     */
+    OtpMbox getMbox() {
+        return mbox;
+    }
+
+    /**
+     * Release this shim's resources and exit its mbox
+     */
+    void close() {
+        if (pipelineExecutor != null) {
+            pipelineExecutor.shutdown();
+        }
+        if (ownsPool) {
+            clientPool.shutdown();
+        }
+        if (rawClient != null) {
+            rawClient.shutdown();
+        }
+        mbox.exit("interupted");
+    }
+
+    /**
+     * Reply to <code>from</code> to an admitted request, tagging the reply
+     * with <code>ref</code> if the request carried one
+     * 
+     * @param from
+     * @param ref
+     *            may be null
+     * @param reply
+     */
+    private void send(OtpErlangPid from, OtpErlangObject ref, OtpErlangObject reply) {
+        if (reply == Replies.ERROR_TIMEOUT) {
+            backlog.timedOut();
+        }
+        backlog.done();
+        reply(from, ref, reply);
+    }
+
+    /**
+     * Deliver a reply, to <code>from</code>'s mailbox unless overridden
+     * 
+     * @param from
+     * @param ref
+     *            may be null
+     * @param reply
+     */
+    void reply(OtpErlangPid from, OtpErlangObject ref, OtpErlangObject reply) {
+        mbox.send(from, replies.message(ref, reply));
+    }
+
+    /**
+     * Run <code>op</code> against <code>client</code> and reply. If the
+     * request has a deadline and it passes first <code>{error, timeout}</code>
+     * is sent then, the blocked call's reply is dropped when it returns. If
+     * <code>client</code> is the shim's own it's aborted at the deadline, so
+     * the call returns, and replaced. A request already past its deadline
+     * gets <code>{error, timeout}</code> without going to Riak. If this throws
+     * the request has not been replied to.
+     * 
+     * @param from
+     * @param ref
+     *            may be null
+     * @param op
+     * @param in
+     *            the rest of the message, positioned at the args
+     * @param client
+     * @param holder
+     *            the reusable {@link Args} for the calling thread
+     * @throws OtpErlangDecodeException
+     */
+    private void perform(OtpErlangPid from, OtpErlangObject ref, Op op, OtpInputStream in, RawClient client,
+            Args holder) throws OtpErlangDecodeException {
+        final long start = System.nanoTime();
+        TimedReply timed = null;
+        OtpErlangObject reply;
+
+        try {
+            switch (op) {
+            case MGET:
+            case MPUT:
+                final Op single = op == Op.MGET ? Op.GET : Op.PUT;
+                final List<Args> entries = batchArgs.get();
+                final int count = decodeAll(single, in, entries);
+                final long deadline = earliestDeadline(entries, count);
+
+                if (isPast(deadline)) {
+                    // no timer, it'd fire straight away and abort a good client
+                    reply = Replies.ERROR_TIMEOUT;
                     break;
-                case DELETE:
-                    try {
-                        rawClient.delete(getArgs.getBucket(), getArgs.getKey(), getArgs.getR());
-                        reply = reply("ok");
-                    } catch (IOException e) {
-                        reply = errorReply(e, putArgs, getArgs);
+                }
+                timed = watch(from, ref, deadline, client);
+                reply = performBatch(single, entries, count, client);
+                break;
+            default:
+                final Args args = decode(op, in, holder);
 
-                    }
+                if (args.isExpired()) {
+                    reply = Replies.ERROR_TIMEOUT;
                     break;
-                case CREATE_UPDATE:
-                    try {
-                        RiakResponse response = rawClient.fetch(getArgs.getBucket(), getArgs.getKey(), getArgs.getR());
+                }
+                timed = watch(from, ref, args.getDeadline(), client);
+                reply = ops.perform(op, args, client);
+            }
+        } catch (RuntimeException e) {
+            if (timed != null && !timed.cancel()) {
+                // the timer has already replied, there's no one to tell
+                e.printStackTrace();
+
+                if (timed.client != null) {
+                    reconnect(timed.client);
+                }
+                return;
+            }
+            throw e;
+        }
+
+        stats.record(op, (System.nanoTime() - start) / 1000);
+
+        if (timed == null) {
+            send(from, ref, reply);
+        } else if (!timed.complete(reply) && timed.client != null) {
+            reconnect(timed.client);
+        }
+    }
+
+    /**
+     * Replace the shim's client, aborted when a deadline passed
+     * 
+     * @param aborted
+     */
+    private void reconnect(RawClient aborted) {
+        try {
+            rawClient = ClientFactory.connectedClient(config);
+        } catch (IOException e) {
+            // keep the old one, its next call fails and times out again
+            System.out.println("failed to reconnect to " + config.getHost() + " :: " + e);
+            return;
+        }
+        aborted.shutdown();
+    }
+
+    /**
+     * @param from
+     * @param ref
+     * @param deadline
+     *            0 for none
+     * @param client
+     *            the client the request is made on
+     * @return a {@link TimedReply} that times out at <code>deadline</code>,
+     *         or null if there's no deadline
+     */
+    private TimedReply watch(OtpErlangPid from, OtpErlangObject ref, long deadline, RawClient client) {
+        if (deadline == 0) {
+            return null;
+        }
+        // only the shim's own client is aborted, others are shared
+        final TimedReply timed = new TimedReply(from, ref, client == rawClient && config != null ? client : null);
+        timed.timer = DEADLINES.schedule(timed, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        return timed;
+    }
+
+    /**
+     * @param deadline
+     *            0 for none
+     * @return true if <code>deadline</code> has passed
+     */
+    private static boolean isPast(long deadline) {
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @return the earliest deadline of the first <code>count</code> entries, 0
+     *         if none has one
+     */
+    private static long earliestDeadline(List<Args> entries, int count) {
+        long earliest = 0;
+
+        for (int i = 0; i < count; i++) {
+            final long deadline = entries.get(i).getDeadline();
 
-                        rob.withValue(putArgs.getValue());
+            if (deadline != 0 && (earliest == 0 || deadline - earliest < 0)) {
+                earliest = deadline;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * Decode a single key op's args, making the key and value if the shim has
+     * generators and the message left them out
+     * 
+     * @param op
+     * @param in
+     *            positioned at the args
+     * @param holder
+     * @return <code>holder</code>
+     * @throws OtpErlangDecodeException
+     */
+    private Args decode(Op op, OtpInputStream in, Args holder) throws OtpErlangDecodeException {
+        return holder.decode(op, in).generate(op, keyGenerator, valueGenerator, sequence).defaultTimeout(timeoutMs);
+    }
+
+    /**
+     * As {@link #decode(Op, OtpInputStream, Args)} for every entry of a batch
+     * 
+     * @return the number of entries
+     */
+    private int decodeAll(Op op, OtpInputStream in, List<Args> into) throws OtpErlangDecodeException {
+        final int count = Args.decodeAll(op, in, into, keyEncoding);
+
+        for (int i = 0; i < count; i++) {
+            into.get(i).generate(op, keyGenerator, valueGenerator, sequence).defaultTimeout(timeoutMs);
+        }
+        return count;
+    }
+
+    /**
+     * Run <code>op</code> for every entry in <code>args</code>
+     * 
+     * @param op
+     *            the single key {@link Op} to run for each entry
+     * @param entries
+     *            the decoded args, one per key
+     * @param count
+     *            the number of entries in use
+     * @param client
+     * @return <code>{ok, [Reply]}</code> with a reply per key, in order
+     */
+    private OtpErlangObject performBatch(Op op, List<Args> entries, int count, RawClient client) {
+        final OtpErlangObject[] replies = new OtpErlangObject[count];
+
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = ops.perform(op, entries.get(i), client);
+        }
 
-                        if (response != null && (response.hasValue() && response.getVclock() != null)) {
-                            rob.withVClock(response.getVclock()).build();
-                        }
+        return new OtpErlangTuple(new OtpErlangObject[] { OK, new OtpErlangList(replies) });
+    }
 
-                        rawClient.store(rob.build(), new StoreMeta(putArgs.getW(), putArgs.getDw(), null, false, false, false));
-                        reply = reply("ok");
-                    } catch (Exception e) {
-                        reply = errorReply(e, putArgs, getArgs);
+    /**
+     * Start <code>op</code> on the {@link AsyncPbClient}, the reply is sent
+     * when it completes. Returns straight away unless the shim already has
+     * its limit of requests outstanding.
+     * 
+     * @param from
+     * @param ref
+     *            may be null
+     * @param op
+     * @param in
+     *            the rest of the message, positioned at the args
+     * @throws OtpErlangDecodeException
+     * @throws InterruptedException
+     */
+    private void performAsync(final OtpErlangPid from, final OtpErlangObject ref, final Op op,
+            final OtpInputStream in) throws OtpErlangDecodeException, InterruptedException {
+        asyncPermits.acquire();
+        final long start = System.nanoTime();
+
+        try {
+            switch (op) {
+            case MGET:
+                performAsyncBatch(from, ref, op, Op.GET, in, start);
+                break;
+            case MPUT:
+                performAsyncBatch(from, ref, op, Op.PUT, in, start);
+                break;
+            default:
+                Args holder = asyncArgs.poll();
+                final Args args = decode(op, in, holder == null ? new Args(keyEncoding) : holder);
+
+                asyncOps.perform(op, args, new AsyncReply(args) {
+                    public void completed(OtpErlangObject reply) {
+                        asyncArgs.offer(args);
+                        finishAsync(from, ref, op, start, reply);
                     }
+                });
+            }
+        } catch (OtpErlangDecodeException e) {
+            asyncPermits.release();
+            throw e;
+        }
+    }
 
-                    break;
-                case UPDATE:
-                    try {
-                        RiakResponse response = rawClient.fetch(getArgs.getBucket(), getArgs.getKey(), getArgs.getR());
-                        if (response == null || (!response.hasValue() && response.getVclock() == null)) {
-                            reply = reply("error", "notfound");
-                        } else {
-                            rob.withValue(putArgs.getValue());
-                            rawClient.store(rob.withVClock(response.getVclock()).build(),
-                                            new StoreMeta(putArgs.getW(), putArgs.getDw(), null, false, false, false));
-                            reply = reply("ok");
-                        }
-                    } catch (Exception e) {
-                        reply = errorReply(e, putArgs, getArgs);
+    /**
+     * Start every entry of a batch at once, reply when the last completes
+     */
+    private void performAsyncBatch(final OtpErlangPid from, final OtpErlangObject ref, final Op batchOp, Op op,
+            OtpInputStream in, final long start) throws OtpErlangDecodeException {
+        final List<Args> entries = new ArrayList<Args>();
+        final OtpErlangObject[] results = new OtpErlangObject[decodeAll(op, in, entries)];
+        final AtomicInteger remaining = new AtomicInteger(results.length);
+
+        if (results.length == 0) {
+            finishAsync(from, ref, batchOp, start, new OtpErlangTuple(new OtpErlangObject[] { OK,
+                                                                                            new OtpErlangList() }));
+            return;
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            final int index = i;
+
+            asyncOps.perform(op, entries.get(i), new AsyncReply(entries.get(i)) {
+                public void completed(OtpErlangObject reply) {
+                    results[index] = reply;
+
+                    if (remaining.decrementAndGet() == 0) {
+                        finishAsync(from, ref, batchOp, start,
+                                    new OtpErlangTuple(new OtpErlangObject[] { OK, new OtpErlangList(results) }));
                     }
+                }
+            });
+        }
+    }
 
-                    break;
-                default:
-                    throw new UnsupportedOperationException(op.name());
+    private void finishAsync(OtpErlangPid from, OtpErlangObject ref, Op op, long start, OtpErlangObject reply) {
+        stats.record(op, (System.nanoTime() - start) / 1000);
+        asyncPermits.release();
+        send(from, ref, reply);
+    }
+
+    /**
+     * The reply to a blocking request with a deadline, sent by whichever comes
+     * first, the request completing or the timer. The timer aborts the
+     * request's client, if there is one to abort.
+     */
+    private final class TimedReply implements Runnable {
+        private final OtpErlangPid from;
+        private final OtpErlangObject ref;
+        private final RawClient client;
+        private final AtomicBoolean sent = new AtomicBoolean();
+        private volatile Future<?> timer;
+
+        TimedReply(OtpErlangPid from, OtpErlangObject ref, RawClient client) {
+            this.from = from;
+            this.ref = ref;
+            this.client = client;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            if (sent.compareAndSet(false, true)) {
+                send(from, ref, Replies.ERROR_TIMEOUT);
+
+                if (client != null) {
+                    ClientAbort.abort(client);
                 }
-                mbox.send(from, new OtpErlangTuple(new OtpErlangObject[] { mbox.self(), reply }));
-            } catch (OtpErlangExit e) {
-                throw new RuntimeException(e);
-            } catch (OtpErlangDecodeException e) {
-                throw new RuntimeException(e);
             }
         }
-        mbox.exit("interupted");
+
+        /**
+         * @param reply
+         * @return false if the timer went first
+         */
+        boolean complete(OtpErlangObject reply) {
+            if (cancel()) {
+                send(from, ref, reply);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Stop the timer without replying, the request failed and the
+         * caller replies
+         * 
+         * @return false if the timer went first
+         */
+        boolean cancel() {
+            if (sent.compareAndSet(false, true)) {
+                timer.cancel(false);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return a daemon timer that clears out cancelled timeouts every second,
+     *         most requests finish well before their deadline
+     */
+    private static ScheduledThreadPoolExecutor newDeadlineTimer() {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "shim-deadlines");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                timer.purge();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        return timer;
     }
 
     /**
-     * @param e
-     * @param putArgs
-     * @param getArgs
-     * @return
+     * Turns a failed async op into the same error reply as a blocking one
      */
-    private OtpErlangObject errorReply(Exception e, PutArgs putArgs, GetArgs getArgs) {
-        OtpErlangAtom error = new OtpErlangAtom("error");
-        String eString = e.toString() + " b : " + putArgs.getBucket() + " k : " + putArgs.getKey();
-        OtpErlangString reason = new OtpErlangString(eString);
+    private abstract class AsyncReply implements AsyncOps.Completion {
+        private final Args args;
+
+        AsyncReply(Args args) {
+            this.args = args;
+        }
 
-        System.out.println("sending error message for " + host + " :: " + eString);
-        return new OtpErlangTuple(new OtpErlangObject[] { error, reason });
+        public void failed(Exception e) {
+            completed(ops.errorReply(e, args));
+        }
+    }
+
+    /**
+     * @return the {@link VClockCache} this shim uses, shared or its own, null
+     *         for none
+     */
+    public VClockCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return this shim's mailbox depth and requests in flight
+     */
+    public Backlog getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return the latencies of the {@link RawClient} calls made by this shim
+     */
+    public LatencyStats getStats() {
+        return stats;
     }
 
 }
@@ -0,0 +1,706 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.basho.riak.client.IRiakObject;
+import com.basho.riak.client.bucket.BucketProperties;
+import com.basho.riak.client.query.MapReduceResult;
+import com.basho.riak.client.query.NodeStats;
+import com.basho.riak.client.query.WalkResult;
+import com.basho.riak.client.raw.DeleteMeta;
+import com.basho.riak.client.raw.FetchMeta;
+import com.basho.riak.client.raw.RawClient;
+import com.basho.riak.client.raw.RiakResponse;
+import com.basho.riak.client.raw.StoreMeta;
+import com.basho.riak.client.raw.Transport;
+import com.basho.riak.client.raw.query.LinkWalkSpec;
+import com.basho.riak.client.raw.query.MapReduceSpec;
+import com.basho.riak.client.raw.query.MapReduceTimeoutException;
+import com.basho.riak.client.raw.query.indexes.IndexQuery;
+import com.basho.riak.pbc.RiakError;
+
+/**
+ * A {@link RawClient} over several Riak nodes. Each request goes to a node
+ * picked by the config's {@link Balance}, if it fails with an
+ * {@link IOException} the node is marked down for
+ * {@link ShimOptions#getNodeRetryMs()} and the request is tried on another
+ * node, until every node has been tried.
+ * <p>
+ * Nodes are picked from the healthy ones, a node that is down is only used
+ * once every other node has failed the request. Health and latency are kept
+ * in the {@link EndpointStats} shared by every cluster client for the node.
+ * </p>
+ * <p>
+ * With {@link ShimOptions#getHedge()} set, a pb fetch that has taken longer
+ * than that percentile of its node's fetch latency is sent to a second node
+ * too, from a shared thread pool. The first answer is used, if it's the
+ * second node's the first node's call is aborted.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class ClusterClient implements RawClient {
+
+    // runs the second attempt of hedged fetches, the first is the caller's
+    private static final ExecutorService HEDGES = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "hedge");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // starts hedges once their fetch has taken too long
+    private static final ScheduledExecutorService HEDGE_TIMER = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "hedge-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Node[] nodes;
+    private final Balance balance;
+    private final long retryMs;
+    private final double hedge;
+    private final long hedgeMinMicros;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Random random = new Random();
+
+    /**
+     * @param config
+     *            the endpoints to balance over
+     * @throws IOException
+     */
+    public ClusterClient(ClientConfig config) throws IOException {
+        final List<Endpoint> endpoints = config.getEndpoints();
+        this.nodes = new Node[endpoints.size()];
+
+        boolean ok = false;
+
+        try {
+            for (int i = 0; i < nodes.length; i++) {
+                final Endpoint endpoint = endpoints.get(i);
+                nodes[i] = new Node(i, ClientFactory.newClient(config.forEndpoint(endpoint)),
+                                    ClientFactory.endpointStats(endpoint));
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                // don't leak the nodes already connected
+                for (Node node : nodes) {
+                    if (node != null) {
+                        node.client.shutdown();
+                    }
+                }
+            }
+        }
+        this.balance = config.getOptions().getBalance();
+        this.retryMs = config.getOptions().getNodeRetryMs();
+        // only a pb call can be aborted and its client still used
+        this.hedge = nodes.length > 1 && config.getTransport() == com.basho.riak.bench.Transport.PB
+                ? config.getOptions().getHedge() : 0;
+        this.hedgeMinMicros = config.getOptions().getHedgeMinMs() * 1000;
+    }
+
+    /**
+     * A request that can be made on any node
+     */
+    private interface Call<T> {
+        T call(RawClient client) throws IOException;
+    }
+
+    /**
+     * A fetch, its latency sets the hedge delay
+     */
+    private abstract static class Fetch implements Call<RiakResponse> {}
+
+    /**
+     * One node's go at a hedged fetch, abandoned once the other node's has
+     * answered
+     */
+    private static final class Attempt {
+        private volatile boolean abandoned;
+    }
+
+    /**
+     * Make <code>call</code> on the picked node, failing over to the others
+     * 
+     * @param call
+     * @return the result of the first node to succeed
+     * @throws IOException
+     *             the last node's error if every node fails
+     */
+    private <T> T execute(Call<T> call) throws IOException {
+        return execute(call, new boolean[nodes.length], null);
+    }
+
+    /**
+     * Make <code>call</code> on the nodes not yet tried, failing over
+     * 
+     * @param call
+     * @param tried
+     *            nodes already tried for this request
+     * @param last
+     *            the error they failed with, if any
+     * @return the result of the first node to succeed
+     * @throws IOException
+     *             the last node's error if every node fails
+     */
+    private <T> T execute(Call<T> call, boolean[] tried, IOException last) throws IOException {
+        for (Node node = select(tried); node != null; node = select(tried)) {
+            tried[node.index] = true;
+
+            try {
+                return attempt(node, call);
+            } catch (RiakError e) {
+                throw e;
+            } catch (IOException e) {
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    /**
+     * Make <code>call</code> on <code>node</code>, keeping its stats
+     * 
+     * @param node
+     * @param call
+     * @return the result
+     * @throws IOException
+     *             if the node failed, it's marked down unless it was a
+     *             {@link RiakError} or the node's {@link ConcurrencyLimit}
+     */
+    private <T> T attempt(Node node, Call<T> call) throws IOException {
+        return attempt(node, call, null);
+    }
+
+    /**
+     * Make <code>call</code> on <code>node</code>, keeping its stats
+     * 
+     * @param node
+     * @param call
+     * @param tracked
+     *            the hedged fetch's attempt, null if not hedged
+     * @return the result
+     * @throws IOException
+     *             if the node failed, it's marked down unless it was a
+     *             {@link RiakError}, the node's {@link ConcurrencyLimit}, or
+     *             the call was aborted once the other attempt answered
+     */
+    private <T> T attempt(Node node, Call<T> call, Attempt tracked) throws IOException {
+        final long start = System.nanoTime();
+        node.stats.begin();
+        boolean ok = false;
+
+        try {
+            final T result = call.call(node.client);
+            ok = true;
+            return result;
+        } catch (RiakError e) {
+            // the node is fine, it just didn't like the request
+            throw e;
+        } catch (ConcurrencyLimit.LimitExceededException e) {
+            // busy rather than down, try another node but keep this one
+            throw e;
+        } catch (IOException e) {
+            if (!isAbandoned(tracked)) {
+                node.stats.markDown(retryMs);
+            }
+            throw e;
+        } finally {
+            final long micros = (System.nanoTime() - start) / 1000;
+
+            if (!ok && isAbandoned(tracked)) {
+                node.stats.abandoned();
+                // it would have taken at least this long, keep the slow
+                // fetches in the hedge delay
+                node.stats.fetched(micros);
+            } else {
+                node.stats.end(micros, ok);
+
+                if (ok && call instanceof Fetch) {
+                    node.stats.fetched(micros);
+                }
+            }
+        }
+    }
+
+    private static boolean isAbandoned(Attempt tracked) {
+        return tracked != null && tracked.abandoned;
+    }
+
+    /**
+     * Make <code>fetch</code> on the picked node, and on a second node as well
+     * if the first is slower than the hedge percentile of its fetches. The
+     * first node's attempt runs on the calling thread, only a hedge is handed
+     * to another.
+     * 
+     * @param fetch
+     * @return the first answer
+     * @throws IOException
+     *             the last node's error if every node fails
+     */
+    private RiakResponse hedge(Fetch fetch) throws IOException {
+        if (hedge <= 0) {
+            return execute(fetch);
+        }
+        final boolean[] tried = new boolean[nodes.length];
+        final Node primary = select(tried);
+        tried[primary.index] = true;
+        final long delay = primary.stats.getHedgeDelayMicros(hedge);
+
+        if (delay < 0) {
+            // too few fetches yet to tell what slow is
+            try {
+                return attempt(primary, fetch);
+            } catch (RiakError e) {
+                throw e;
+            } catch (IOException e) {
+                return execute(fetch, tried, e);
+            }
+        }
+
+        final Hedge race = new Hedge(primary, fetch, tried);
+        final Future<?> timer = HEDGE_TIMER.schedule(race, Math.max(delay, hedgeMinMicros), TimeUnit.MICROSECONDS);
+        IOException last = null;
+
+        try {
+            final RiakResponse response = attempt(primary, fetch, race.first);
+
+            if (race.primaryDone()) {
+                return response;
+            }
+        } catch (RiakError e) {
+            if (race.primaryDone()) {
+                throw e;
+            }
+            last = e;
+        } catch (IOException e) {
+            if (race.cancel()) {
+                // never hedged, fail over as usual
+                return execute(fetch, tried, e);
+            }
+            last = e;
+        } catch (RuntimeException e) {
+            // an aborted pb call can fail with one too
+            if (race.primaryDone()) {
+                throw e;
+            }
+        } finally {
+            timer.cancel(false);
+        }
+
+        // the hedge answered first, or is still running and may yet
+        try {
+            final RiakResponse response = race.await();
+
+            if (response != null) {
+                primary.stats.hedgeWon();
+                return response;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (race.failure instanceof RiakError) {
+            throw race.failure;
+        }
+        return execute(fetch, tried, race.failure != null ? race.failure : last);
+    }
+
+    /**
+     * @param tried
+     *            nodes already tried for this request
+     * @return the next node to try, a healthy one if there is any left
+     */
+    private Node select(boolean[] tried) {
+        final long now = System.currentTimeMillis();
+        final int first = (next.getAndIncrement() & Integer.MAX_VALUE) % nodes.length;
+        Node picked = null;
+        double totalWeight = 0;
+
+        for (int i = 0; i < nodes.length; i++) {
+            final Node node = nodes[(first + i) % nodes.length];
+
+            if (tried[node.index] || !node.stats.isUp(now)) {
+                continue;
+            }
+
+            switch (balance) {
+            case ROUND_ROBIN:
+                return node;
+            case LEAST_OUTSTANDING:
+                if (picked == null || node.stats.getOutstanding() < picked.stats.getOutstanding()) {
+                    picked = node;
+                }
+                break;
+            case LATENCY:
+                // weighted reservoir pick, weight is 1 / average latency
+                final double weight = 1.0 / (1.0 + node.stats.getAverageMicros());
+                totalWeight += weight;
+                if (random.nextDouble() * totalWeight < weight) {
+                    picked = node;
+                }
+                break;
+            }
+        }
+
+        if (picked == null) {
+            // nothing healthy left, try the down nodes in turn anyway
+            for (int i = 0; i < nodes.length; i++) {
+                final Node node = nodes[(first + i) % nodes.length];
+
+                if (!tried[node.index]) {
+                    return node;
+                }
+            }
+        }
+        return picked;
+    }
+
+    public RiakResponse head(final String bucket, final String key, final FetchMeta fetchMeta) throws IOException {
+        return hedge(new Fetch() {
+            public RiakResponse call(RawClient client) throws IOException {
+                return client.head(bucket, key, fetchMeta);
+            }
+        });
+    }
+
+    public RiakResponse fetch(final String bucket, final String key) throws IOException {
+        return hedge(new Fetch() {
+            public RiakResponse call(RawClient client) throws IOException {
+                return client.fetch(bucket, key);
+            }
+        });
+    }
+
+    public RiakResponse fetch(final String bucket, final String key, final int readQuorum) throws IOException {
+        return hedge(new Fetch() {
+            public RiakResponse call(RawClient client) throws IOException {
+                return client.fetch(bucket, key, readQuorum);
+            }
+        });
+    }
+
+    public RiakResponse fetch(final String bucket, final String key, final FetchMeta fetchMeta) throws IOException {
+        return hedge(new Fetch() {
+            public RiakResponse call(RawClient client) throws IOException {
+                return client.fetch(bucket, key, fetchMeta);
+            }
+        });
+    }
+
+    public RiakResponse store(final IRiakObject object, final StoreMeta storeMeta) throws IOException {
+        return execute(new Call<RiakResponse>() {
+            public RiakResponse call(RawClient client) throws IOException {
+                return client.store(object, storeMeta);
+            }
+        });
+    }
+
+    public void store(final IRiakObject object) throws IOException {
+        execute(new Call<Void>() {
+            public Void call(RawClient client) throws IOException {
+                client.store(object);
+                return null;
+            }
+        });
+    }
+
+    public void delete(final String bucket, final String key) throws IOException {
+        execute(new Call<Void>() {
+            public Void call(RawClient client) throws IOException {
+                client.delete(bucket, key);
+                return null;
+            }
+        });
+    }
+
+    public void delete(final String bucket, final String key, final int deleteQuorum) throws IOException {
+        execute(new Call<Void>() {
+            public Void call(RawClient client) throws IOException {
+                client.delete(bucket, key, deleteQuorum);
+                return null;
+            }
+        });
+    }
+
+    public void delete(final String bucket, final String key, final DeleteMeta deleteMeta) throws IOException {
+        execute(new Call<Void>() {
+            public Void call(RawClient client) throws IOException {
+                client.delete(bucket, key, deleteMeta);
+                return null;
+            }
+        });
+    }
+
+    public Set<String> listBuckets() throws IOException {
+        return execute(new Call<Set<String>>() {
+            public Set<String> call(RawClient client) throws IOException {
+                return client.listBuckets();
+            }
+        });
+    }
+
+    public BucketProperties fetchBucket(final String bucketName) throws IOException {
+        return execute(new Call<BucketProperties>() {
+            public BucketProperties call(RawClient client) throws IOException {
+                return client.fetchBucket(bucketName);
+            }
+        });
+    }
+
+    public void updateBucket(final String name, final BucketProperties bucketProperties) throws IOException {
+        execute(new Call<Void>() {
+            public Void call(RawClient client) throws IOException {
+                client.updateBucket(name, bucketProperties);
+                return null;
+            }
+        });
+    }
+
+    public Iterable<String> listKeys(final String bucketName) throws IOException {
+        return execute(new Call<Iterable<String>>() {
+            public Iterable<String> call(RawClient client) throws IOException {
+                return client.listKeys(bucketName);
+            }
+        });
+    }
+
+    public WalkResult linkWalk(final LinkWalkSpec linkWalkSpec) throws IOException {
+        return execute(new Call<WalkResult>() {
+            public WalkResult call(RawClient client) throws IOException {
+                return client.linkWalk(linkWalkSpec);
+            }
+        });
+    }
+
+    public MapReduceResult mapReduce(MapReduceSpec spec) throws IOException, MapReduceTimeoutException {
+        // not retried, a timeout isn't the node's fault
+        return nodes[0].client.mapReduce(spec);
+    }
+
+    public byte[] generateAndSetClientId() throws IOException {
+        final byte[] clientId = execute(new Call<byte[]>() {
+            public byte[] call(RawClient client) throws IOException {
+                return client.generateAndSetClientId();
+            }
+        });
+        setClientId(clientId);
+        return clientId;
+    }
+
+    public void setClientId(byte[] clientId) throws IOException {
+        // the same id on every node, it's the one client as far as vclocks go
+        for (Node node : nodes) {
+            node.client.setClientId(clientId);
+        }
+    }
+
+    public byte[] getClientId() throws IOException {
+        return nodes[0].client.getClientId();
+    }
+
+    public void ping() throws IOException {
+        execute(new Call<Void>() {
+            public Void call(RawClient client) throws IOException {
+                client.ping();
+                return null;
+            }
+        });
+    }
+
+    public List<String> fetchIndex(final IndexQuery indexQuery) throws IOException {
+        return execute(new Call<List<String>>() {
+            public List<String> call(RawClient client) throws IOException {
+                return client.fetchIndex(indexQuery);
+            }
+        });
+    }
+
+    public Transport getTransport() {
+        return nodes[0].client.getTransport();
+    }
+
+    public void shutdown() {
+        for (Node node : nodes) {
+            node.client.shutdown();
+        }
+    }
+
+    /**
+     * Abort the calls in progress on every node, see {@link ClientAbort}
+     * 
+     * @return false if a node's client couldn't be aborted
+     */
+    boolean abort() {
+        boolean aborted = true;
+
+        for (Node node : nodes) {
+            aborted &= ClientAbort.abort(node.client);
+        }
+        return aborted;
+    }
+
+    public NodeStats stats() throws IOException {
+        return execute(new Call<NodeStats>() {
+            public NodeStats call(RawClient client) throws IOException {
+                return client.stats();
+            }
+        });
+    }
+
+    /**
+     * The second attempt of a fetch, started by {@link #HEDGE_TIMER} if the
+     * first is still running then. Whichever answers first aborts the other
+     * node's call, so the caller gets the answer straight away and the loser
+     * doesn't hold a connection.
+     */
+    private final class Hedge implements Runnable {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int WON = 2;
+        private static final int DONE = 3;
+
+        private final Node primary;
+        private final Fetch fetch;
+        private final boolean[] tried;
+        private final Attempt first = new Attempt();
+        private final Attempt second = new Attempt();
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private volatile Node other;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile RiakResponse response;
+        private volatile IOException failure;
+
+        Hedge(Node primary, Fetch fetch, boolean[] tried) {
+            this.primary = primary;
+            this.fetch = fetch;
+            this.tried = tried;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            final Node node = select(tried);
+
+            if (node == null) {
+                return;
+            }
+            other = node;
+
+            if (!state.compareAndSet(PENDING, RUNNING)) {
+                return;
+            }
+            tried[node.index] = true;
+            primary.stats.hedged();
+
+            HEDGES.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (state.get() != RUNNING) {
+                            // the first answered while this waited for a thread
+                            return;
+                        }
+                        response = attempt(node, fetch, second);
+
+                        if (state.compareAndSet(RUNNING, WON)) {
+                            first.abandoned = true;
+                            ClientAbort.abortCalls(primary.client);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    } catch (RuntimeException e) {
+                        // an aborted pb call can fail with one too
+                        if (!second.abandoned) {
+                            throw e;
+                        }
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Abort a started hedge, the first node's attempt answered first
+         * 
+         * @return false if the hedge answered first
+         */
+        boolean primaryDone() {
+            if (state.compareAndSet(PENDING, DONE)) {
+                return true;
+            }
+            if (state.compareAndSet(RUNNING, DONE)) {
+                second.abandoned = true;
+                ClientAbort.abortCalls(other.client);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return false if the hedge has started
+         */
+        boolean cancel() {
+            return state.compareAndSet(PENDING, DONE);
+        }
+
+        /**
+         * Wait for a started hedge, and its abort of the first node's call
+         * 
+         * @return its answer, or null if it failed or didn't answer first
+         * @throws InterruptedException
+         */
+        RiakResponse await() throws InterruptedException {
+            finished.await();
+            return state.get() == WON ? response : null;
+        }
+    }
+
+    /**
+     * One node's client and stats
+     */
+    private static final class Node {
+        private final int index;
+        private final RawClient client;
+        private final EndpointStats stats;
+
+        private Node(int index, RawClient client, EndpointStats stats) {
+            this.index = index;
+            this.client = client;
+            this.stats = stats;
+        }
+    }
+}
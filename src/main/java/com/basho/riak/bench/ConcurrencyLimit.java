@@ -0,0 +1,364 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An adaptive limit on the requests in flight to one Riak node, shared by
+ * every client that talks to it. A request takes a slot with
+ * {@link #acquire(long)}, waiting if the limit is reached, and hands it back
+ * with its round trip time to {@link #release(long, long, boolean)}.
+ * <p>
+ * Round trips are gathered in windows of about a limit's worth (roughly one
+ * round trip of the whole limit), and at the end of each the
+ * {@link LimitAlgorithm} moves the limit by comparing the window's average
+ * round trip with the base round trip, the quickest window seen, which is
+ * taken to be Riak without a queue. A window with a failed request cuts the
+ * limit whatever the algorithm. The limit only grows after a window that used
+ * at least half of it, so a lightly loaded node's limit doesn't creep up to
+ * the maximum.
+ * </p>
+ * <p>
+ * A base measured while Riak was already queueing would keep the limit too
+ * high, so the first window and one every {@link #PROBE_MS} after that are
+ * run at a quarter of the limit. The first sets the base, later ones lower
+ * it or move it a little towards their round trip, in case Riak has got
+ * slower for good. Requests admitted before a window starts are left out of
+ * it, so a probe only measures requests it admitted itself.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class ConcurrencyLimit {
+
+    // a recent round trip this many times the base is queueing
+    private static final double TOLERANCE = 1.5;
+    private static final long PROBE_MS = 10000;
+    // share of the gradient's new limit taken each window
+    private static final double SMOOTHING = 0.2;
+    // multiplicative decrease
+    private static final double BACKOFF = 0.9;
+    private static final int MIN_WINDOW = 10;
+    // share of the gap to a slower probe the base moves by
+    private static final double BASE_DRIFT = 0.2;
+
+    private final LimitAlgorithm algorithm;
+    private final int maxLimit;
+    private final long probeMs;
+    // fair, so requests get slots in the order they asked
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition slotFree = lock.newCondition();
+    // all guarded by lock
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long rejected;
+    private double recentRtt;
+    private double baseRtt;
+    private boolean probing = true;
+    private long probeAt;
+    // bumped as a window starts at another concurrency
+    private long epoch;
+    private int windowSize;
+    private int windowOk;
+    private long windowMicros;
+    private int windowMaxInFlight;
+    private boolean windowFailed;
+
+    /**
+     * @param algorithm
+     * @param initialLimit
+     * @param maxLimit
+     */
+    public ConcurrencyLimit(LimitAlgorithm algorithm, int initialLimit, int maxLimit) {
+        this(algorithm, initialLimit, maxLimit, PROBE_MS);
+    }
+
+    /**
+     * @param algorithm
+     * @param initialLimit
+     * @param maxLimit
+     * @param probeMs
+     *            time between probes for the base round trip
+     */
+    ConcurrencyLimit(LimitAlgorithm algorithm, int initialLimit, int maxLimit, long probeMs) {
+        this.algorithm = algorithm;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, Math.min(this.maxLimit, initialLimit));
+        this.probeMs = probeMs;
+    }
+
+    /**
+     * Take a slot for a request
+     * 
+     * @param waitMs
+     *            how long to wait for one if the limit is reached, 0 not to
+     *            wait, less than 0 to wait for as long as it takes
+     * @return the window the request was admitted in, to pass to
+     *         {@link #release(long, long, boolean)}
+     * @throws LimitExceededException
+     *             if there's no slot in time
+     * @throws InterruptedIOException
+     *             if interrupted while waiting
+     */
+    public long acquire(long waitMs) throws LimitExceededException, InterruptedIOException {
+        lock.lock();
+
+        try {
+            if (inFlight >= slots()) {
+                long left = TimeUnit.MILLISECONDS.toNanos(waitMs);
+                waiting++;
+
+                try {
+                    while (inFlight >= slots()) {
+                        if (waitMs < 0) {
+                            slotFree.await();
+                        } else if (left > 0) {
+                            left = slotFree.awaitNanos(left);
+                        } else {
+                            rejected++;
+                            throw new LimitExceededException((int) limit);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } finally {
+                    waiting--;
+                }
+            }
+            inFlight++;
+
+            if (inFlight > windowMaxInFlight) {
+                windowMaxInFlight = inFlight;
+            }
+            return epoch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hand back a request's slot
+     * 
+     * @param admitted
+     *            what {@link #acquire(long)} returned
+     * @param micros
+     *            the request's round trip
+     * @param ok
+     *            false if it failed
+     */
+    public void release(long admitted, long micros, boolean ok) {
+        lock.lock();
+
+        try {
+            inFlight--;
+
+            if (admitted != epoch) {
+                // it ran at the concurrency of an earlier window
+                slotFree.signal();
+                return;
+            }
+            windowSize++;
+
+            if (ok) {
+                windowOk++;
+                windowMicros += micros;
+            } else {
+                windowFailed = true;
+            }
+
+            if (windowSize >= Math.max(MIN_WINDOW, slots())) {
+                adjust();
+                slotFree.signalAll();
+            } else {
+                slotFree.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests allowed in flight now, less than the
+     *         limit while probing for the base round trip
+     */
+    private int slots() {
+        return probing ? Math.max(1, (int) limit / 4) : (int) limit;
+    }
+
+    /**
+     * Move the limit at the end of a window, and start the next
+     */
+    private void adjust() {
+        final long now = System.currentTimeMillis();
+        final boolean used = windowMaxInFlight * 2 >= (int) limit;
+        double next = limit;
+
+        if (windowOk > 0) {
+            recentRtt = (double) windowMicros / windowOk;
+
+            if (baseRtt == 0 || recentRtt < baseRtt) {
+                baseRtt = recentRtt;
+            } else if (probing) {
+                // a probe can still queue, so don't take its word for it
+                baseRtt += BASE_DRIFT * (recentRtt - baseRtt);
+            }
+        }
+
+        if (windowFailed) {
+            next = limit * BACKOFF;
+        } else if (windowOk > 0 && !probing) {
+            switch (algorithm) {
+            case AIMD:
+                if (recentRtt > baseRtt * TOLERANCE) {
+                    next = limit * BACKOFF;
+                } else if (used) {
+                    next = limit + 1;
+                }
+                break;
+            case GRADIENT:
+                final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baseRtt / recentRtt));
+                final double target = limit * gradient + Math.sqrt(limit);
+
+                if (target < limit || used) {
+                    next = limit * (1 - SMOOTHING) + target * SMOOTHING;
+                }
+                break;
+            }
+        }
+
+        if (probing && windowOk > 0) {
+            probing = false;
+            probeAt = now + probeMs;
+            epoch++;
+        } else if (!probing && now >= probeAt) {
+            probing = true;
+            epoch++;
+        }
+        limit = Math.max(1, Math.min(maxLimit, next));
+        windowSize = 0;
+        windowOk = 0;
+        windowMicros = 0;
+        windowMaxInFlight = inFlight;
+        windowFailed = false;
+    }
+
+    /**
+     * @return the algorithm moving the limit
+     */
+    public LimitAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the number of requests allowed in flight now
+     */
+    public int getLimit() {
+        lock.lock();
+
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int getInFlight() {
+        lock.lock();
+
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests waiting for a slot
+     */
+    public int getWaiting() {
+        lock.lock();
+
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests that gave up waiting for a slot
+     */
+    public long getRejected() {
+        lock.lock();
+
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the average round trip of the last window, in microseconds
+     */
+    public long getRecentRttMicros() {
+        lock.lock();
+
+        try {
+            return (long) recentRtt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the base round trip, in microseconds
+     */
+    public long getBaseRttMicros() {
+        lock.lock();
+
+        try {
+            return (long) baseRtt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A request found the limit reached and couldn't wait for a slot
+     */
+    public static class LimitExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param limit
+         *            the limit at the time
+         */
+        public LimitExceededException(int limit) {
+            super("concurrency limit " + limit + " reached");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ericsson.otp.erlang.OtpErlangExit;
+
+/**
+ * Runs a {@link ClientShim} a slice at a time on a shared, bounded pool, so
+ * thousands of shims don't need thousands of threads. A message delivered to
+ * an idle shim's mailbox queues the shim on the pool, see
+ * {@link MailboxProbe#onDelivery(com.ericsson.otp.erlang.OtpMbox, Runnable)}.
+ * A shim with messages waiting handles up to {@link #SLICE} of them then goes
+ * to the back of the queue, an idle shim gives its thread back until the next
+ * delivery.
+ * <p>
+ * Shims make their blocking Riak calls on the pool's threads, so the pool
+ * bounds how many requests are in flight at once, see {@link Engine#FIXED}.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class CooperativeShim implements Runnable {
+
+    private static final int SLICE = 32;
+
+    private final ClientShim shim;
+    private final Executor executor;
+    // true while the shim is queued on or running on the pool
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * @param shim
+     * @param executor
+     *            shared by all cooperative shims
+     */
+    public CooperativeShim(ClientShim shim, Executor executor) {
+        this.shim = shim;
+        this.executor = executor;
+    }
+
+    /**
+     * Start running the shim as messages arrive
+     * 
+     * @return false if the shim's mailbox can't say when a message arrives
+     */
+    public boolean start() {
+        return MailboxProbe.onDelivery(shim.getMbox(), new Runnable() {
+            public void run() {
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Queue the shim on the pool unless it already is
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // pool shutdown
+                shim.close();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        try {
+            int handled = 0;
+
+            while (handled < SLICE && shim.poll()) {
+                handled++;
+            }
+
+            if (handled == SLICE) {
+                // maybe more waiting, let the other shims have a go first
+                executor.execute(this);
+                return;
+            }
+            scheduled.set(false);
+
+            if (MailboxProbe.depth(shim.getMbox()) > 0) {
+                // delivered after the last poll but before scheduled was clear
+                schedule();
+            }
+        } catch (OtpErlangExit e) {
+            shim.close();
+        } catch (InterruptedException e) {
+            shim.close();
+        } catch (RejectedExecutionException e) {
+            // pool shutdown
+            shim.close();
+        } catch (Throwable t) {
+            // the request's sender has had {error, Reason}, see ClientShim
+            t.printStackTrace();
+            shim.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.util.Arrays;
+
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * An erlang term that is serialised to the external term format once, up
+ * front, and then just copied into every outgoing message that contains it.
+ * Use it for replies that never change, like <code>ok</code> or
+ * <code>{ok, found}</code>.
+ * 
+ * @author russell
+ * 
+ */
+public class EncodedTerm extends OtpErlangObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] bytes;
+
+    /**
+     * @param term
+     *            the term to encode
+     */
+    public EncodedTerm(OtpErlangObject term) {
+        this.bytes = new OtpOutputStream(term).toByteArray();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.ericsson.otp.erlang.OtpErlangObject#encode(com.ericsson.otp.erlang.OtpOutputStream)
+     */
+    @Override public void encode(OtpOutputStream buf) {
+        buf.writeN(bytes);
+    }
+
+    /**
+     * @return the term this was encoded from (a new copy)
+     */
+    public OtpErlangObject decode() {
+        try {
+            return new OtpInputStream(bytes).read_any();
+        } catch (OtpErlangDecodeException e) {
+            // we encoded it ourselves
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.ericsson.otp.erlang.OtpErlangObject#toString()
+     */
+    @Override public String toString() {
+        return decode().toString();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.ericsson.otp.erlang.OtpErlangObject#equals(java.lang.Object)
+     */
+    @Override public boolean equals(Object o) {
+        if (o instanceof EncodedTerm) {
+            return Arrays.equals(bytes, ((EncodedTerm) o).bytes);
+        }
+        return o instanceof OtpErlangObject && decode().equals(o);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.ericsson.otp.erlang.OtpErlangObject#hashCode()
+     */
+    @Override public int hashCode() {
+        return decode().hashCode();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counts, latency and health of one Riak node, shared by every
+ * {@link ClusterClient} that uses it, so a node one shim finds down is
+ * skipped by all of them until it's due a retry
+ * 
+ * @author russell
+ * 
+ */
+public class EndpointStats {
+
+    // weight of the newest sample in the moving average
+    private static final double ALPHA = 0.1;
+    // fetches seen before the hedge delay is trusted
+    private static final long HEDGE_MIN_SAMPLES = 100;
+    // how often the hedge delay is read off the histogram
+    private static final long HEDGE_REFRESH_MS = 100;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram fetchLatency = new LatencyHistogram();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private volatile double averageMicros;
+    private volatile long downUntil;
+    // by percentile, shims sharing the node may hedge at different ones
+    private final ConcurrentMap<Double, HedgeDelay> hedgeDelays = new ConcurrentHashMap<Double, HedgeDelay>();
+
+    /**
+     * A request to this node is starting
+     */
+    public void begin() {
+        requests.incrementAndGet();
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * A request to this node has finished
+     * 
+     * @param micros
+     *            how long it took
+     * @param ok
+     *            false if it failed
+     */
+    public void end(long micros, boolean ok) {
+        outstanding.decrementAndGet();
+
+        if (ok) {
+            latency.record(micros);
+            // racy, but a lost sample doesn't matter
+            averageMicros += ALPHA * (micros - averageMicros);
+        } else {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * A request to this node was given up on, it's neither a success nor an
+     * error
+     */
+    public void abandoned() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * A fetch from this node succeeded, for the hedge delay
+     * 
+     * @param micros
+     *            how long it took
+     */
+    public void fetched(long micros) {
+        fetchLatency.record(micros);
+    }
+
+    /**
+     * @param percentile
+     *            of this node's fetch latency
+     * @return how long to wait on a fetch from this node before hedging, -1
+     *         until there have been enough fetches to tell
+     */
+    public long getHedgeDelayMicros(double percentile) {
+        final long now = System.currentTimeMillis();
+        final Double key = Double.valueOf(percentile);
+        HedgeDelay delay = hedgeDelays.get(key);
+
+        if (delay == null || now - delay.at >= HEDGE_REFRESH_MS) {
+            // racy, but two threads just work out the same answer
+            delay = new HedgeDelay(now, fetchLatency.getCount() < HEDGE_MIN_SAMPLES ? -1 : fetchLatency
+                    .getValueAtPercentile(percentile));
+            hedgeDelays.put(key, delay);
+        }
+        return delay.micros;
+    }
+
+    /**
+     * A fetch from this node was slow enough to send to another node as well
+     */
+    public void hedged() {
+        hedged.incrementAndGet();
+    }
+
+    /**
+     * The other node answered a hedged fetch first
+     */
+    public void hedgeWon() {
+        hedgeWins.incrementAndGet();
+    }
+
+    /**
+     * @return the number of fetches from this node that were hedged
+     */
+    public long getHedged() {
+        return hedged.get();
+    }
+
+    /**
+     * @return the number of hedged fetches the other node answered first
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Take the node out of rotation until <code>retryMs</code> from now
+     * 
+     * @param retryMs
+     */
+    public void markDown(long retryMs) {
+        downUntil = System.currentTimeMillis() + retryMs;
+    }
+
+    /**
+     * @param now
+     *            current time millis
+     * @return true if the node is healthy or due a retry
+     */
+    public boolean isUp(long now) {
+        return now >= downUntil;
+    }
+
+    /**
+     * @return the number of requests started
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests that failed
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the moving average latency of successful requests
+     */
+    public double getAverageMicros() {
+        return averageMicros;
+    }
+
+    /**
+     * @return the latencies of successful requests
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * A hedge delay and when it was read off the histogram
+     */
+    private static final class HedgeDelay {
+        private final long at;
+        private final long micros;
+
+        private HedgeDelay(long at, long micros) {
+            this.at = at;
+            this.micros = micros;
+        }
+    }
+}
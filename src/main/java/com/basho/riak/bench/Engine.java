@@ -0,0 +1,133 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link ClientShim}s get their threads, picked when {@link BenchShim}
+ * starts
+ * 
+ * @author russell
+ * 
+ */
+public enum Engine {
+
+    /**
+     * A thread per shim, blocked on its mailbox, from a cached pool (the
+     * original behaviour)
+     */
+    CACHED,
+    /**
+     * A bounded pool that runs shims cooperatively (see
+     * {@link CooperativeShim}). Shims make their blocking Riak calls on the
+     * pool's threads, so it starts with one per core and grows whenever
+     * they're all busy, up to {@link #FIXED_THREADS} (or the
+     * <code>riak.bench.fixed.threads</code> system property).
+     */
+    FIXED,
+    /**
+     * A virtual thread per shim, blocked on its mailbox. Needs JDK 21+, and
+     * until JDK 24 the <code>wait()</code> inside jinterface's mailbox pins
+     * the carrier thread, so prefer a JDK 24+ for thousands of shims.
+     */
+    VIRTUAL;
+
+    /**
+     * The most threads {@link #FIXED} runs shims on, and so the most blocking
+     * requests it has in flight
+     */
+    public static final int FIXED_THREADS = 1024;
+
+    /**
+     * @param name
+     *            case insensitive
+     * @return the {@link Engine}
+     */
+    public static Engine fromString(String name) {
+        return Engine.valueOf(name.toUpperCase());
+    }
+
+    /**
+     * @return true if shims should be wrapped in a {@link CooperativeShim}
+     */
+    public boolean isCooperative() {
+        return this == FIXED;
+    }
+
+    /**
+     * @return a new executor for running shims
+     */
+    public ExecutorService newExecutor() {
+        switch (this) {
+        case FIXED:
+            return new GrowingPool(Runtime.getRuntime().availableProcessors(),
+                                   Integer.getInteger("riak.bench.fixed.threads", FIXED_THREADS));
+        case VIRTUAL:
+            try {
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) m.invoke(null);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("virtual threads need JDK 21 or later");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        default:
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * @return this engine, or {@link #CACHED} if this engine can't run in
+     *         this JVM
+     */
+    public Engine orFallback() {
+        if (this == FIXED && !MailboxProbe.isAvailable()) {
+            System.out.println("can't see mailbox depth, using " + CACHED + " engine");
+            return CACHED;
+        }
+        return this;
+    }
+
+    /**
+     * A fixed pool that adds a thread when a task arrives and every thread is
+     * busy, up to its maximum. Threads aren't retired.
+     */
+    private static final class GrowingPool extends ThreadPoolExecutor {
+
+        private GrowingPool(int initial, int max) {
+            super(Math.min(initial, max), max, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.concurrent.ThreadPoolExecutor#execute(java.lang.Runnable)
+         */
+        @Override public void execute(Runnable task) {
+            final int size = getCorePoolSize();
+
+            // racy, a thread more or less is fine
+            if (size < getMaximumPoolSize() && getActiveCount() >= size) {
+                setCorePoolSize(size + 1);
+            }
+            super.execute(task);
+        }
+    }
+}
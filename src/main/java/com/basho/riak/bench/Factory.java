@@ -13,14 +13,22 @@
  */
 package com.basho.riak.bench;
 
+import static com.basho.riak.bench.OtpMessageHelper.prop;
 import static com.basho.riak.bench.OtpMessageHelper.reply;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.ericsson.otp.erlang.OtpErlangAtom;
 import com.ericsson.otp.erlang.OtpErlangDecodeException;
 import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangLong;
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangPid;
@@ -30,24 +38,76 @@ import com.ericsson.otp.erlang.OtpMbox;
 import com.ericsson.otp.erlang.OtpNode;
 
 /**
- * Wraps the {@link OtpMbox} for receiving "create" messages and an executor for
- * running client threads
+ * Wraps the {@link OtpMbox}en (one per node) for receiving "create" messages
+ * and an executor for running client threads
  * 
  * @author russell
  * 
  */
 public class Factory implements Runnable {
 
+    private static final String STATS = "stats";
+    private static final String LOAD = "load";
+    private static final String READY = "ready";
+    private static final String CREATE_MANY = "create_many";
+    // creates connect to Riak, so run several at once
+    private static final int CREATE_THREADS = 16;
+
     private final OtpMbox mbox;
     private final OtpNode node;
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    // a factory mbox on each node, shims are spread over the nodes
+    private final OtpMbox[] mboxes;
+    private final OtpNode[] nodes;
+    private final AtomicLong[] nodeShims;
+    private final AtomicLong nextNode = new AtomicLong();
+    private final Engine engine;
+    private final ExecutorService executorService;
+    private final ExecutorService creators = Executors.newFixedThreadPool(CREATE_THREADS);
+    private final List<LatencyStats> shimStats = new CopyOnWriteArrayList<LatencyStats>();
+    private final List<VClockCache> chainCaches = new CopyOnWriteArrayList<VClockCache>();
+    private final List<Backlog> backlogs = new CopyOnWriteArrayList<Backlog>();
+    // creates and loads that came in during the warm-up, guarded by itself
+    private final List<Deferred> deferred = new ArrayList<Deferred>();
+    private volatile WarmUp warmUp;
+    private volatile Bridge bridge;
+    private volatile boolean ready = true;
 
     /**
      * @param mbox
      */
     public Factory(final OtpNode node) {
-        this.mbox = node.createMbox("factory");
-        this.node = node;
+        this(node, Engine.CACHED);
+    }
+
+    /**
+     * @param node
+     * @param engine
+     *            how to run the shims
+     */
+    public Factory(final OtpNode node, final Engine engine) {
+        this(new OtpNode[] { node }, engine);
+    }
+
+    /**
+     * @param nodes
+     *            a "factory" mbox is registered on each, the first also runs
+     *            any warm-up and load generators
+     * @param engine
+     *            how to run the shims
+     */
+    public Factory(final OtpNode[] nodes, final Engine engine) {
+        this.nodes = nodes.clone();
+        this.mboxes = new OtpMbox[nodes.length];
+        this.nodeShims = new AtomicLong[nodes.length];
+
+        for (int i = 0; i < nodes.length; i++) {
+            mboxes[i] = nodes[i].createMbox("factory");
+            nodeShims[i] = new AtomicLong();
+        }
+        this.mbox = mboxes[0];
+        this.node = nodes[0];
+        this.engine = engine;
+        this.executorService = engine.newExecutor();
     }
 
     /*
@@ -56,36 +116,48 @@ public class Factory implements Runnable {
      * @see java.lang.Runnable#run()
      */
     public void run() {
+        for (int i = 1; i < mboxes.length; i++) {
+            final OtpMbox other = mboxes[i];
+            final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    serve(other);
+                }
+            }, "factory-" + nodes[i].node());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        serve(mbox);
+        shutdown();
+    }
+
+    /**
+     * Answer messages to one of the factory mboxes until interrupted or
+     * exited
+     * 
+     * @param mbox
+     */
+    private void serve(final OtpMbox mbox) {
         while (!Thread.currentThread().isInterrupted()) {
             try {
                 final OtpErlangTuple msg = (OtpErlangTuple) mbox.receive();
                 final OtpErlangPid from = (OtpErlangPid) msg.elementAt(0);
-                final OtpErlangTuple payload = (OtpErlangTuple) msg.elementAt(1);
-                final String host = getHost((OtpErlangTuple) payload.elementAt(0));
-                OtpErlangObject reply;
-                int port;
-                int bufferSizeKb;
-                Transport transport;
-
-                try {
-                    port = ((OtpErlangLong) payload.elementAt(1)).intValue();
-                    bufferSizeKb = ((OtpErlangLong) payload.elementAt(2)).intValue();
-                    transport = Transport.fromAtom((OtpErlangAtom) payload.elementAt(3));
+                final OtpErlangObject payload = msg.elementAt(1);
 
-                    try {
-                        // create a new mbox and client, get a Pid to send back
-                        reply = newClientShim(host, port, bufferSizeKb, transport);
-                    } catch (IOException e) {
-                        // we couldn't create a client, tell the sender
-                        reply = reply("error", e.toString());
-                    }
-                } catch (OtpErlangRangeException e) {
-                    // Port causes a range exception, tell the sender
-                    reply = reply("error", e.getMessage());
+                if (isAtom(payload, STATS)) {
+                    mbox.send(from, stats());
+                } else if (isAtom(payload, READY)) {
+                    mbox.send(from, new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom(READY),
+                                                                              new OtpErlangAtom(ready) }));
+                } else if (isAtom(payload, WarmUp.WARMED_UP) && warmUp != null && from.equals(warmUp.self())) {
+                    warmedUp();
+                } else if (!defer(mbox, msg)) {
+                    answer(mbox, from, payload);
                 }
-
-                mbox.send(from, reply);
             } catch (OtpErlangExit e) {
+                if (mbox != this.mbox) {
+                    // the factory is shutting down
+                    return;
+                }
                 shutdown();
                 throw new RuntimeException(e);
             } catch (OtpErlangDecodeException e) {
@@ -93,15 +165,467 @@ public class Factory implements Runnable {
                 e.printStackTrace();
             }
         }
-        shutdown();
+    }
+
+    /**
+     * Start warming the JVM up with <code>spec</code> before taking work.
+     * Until the warm-up tells this factory it's over, create and load
+     * messages are held, <code>ready</code> gets <code>{ready, false}</code>,
+     * and stats have a <code>{warmup, [...]}</code> entry. Call before the
+     * factory is running.
+     * 
+     * @param spec
+     */
+    public void warmUp(final WarmUpSpec spec) {
+        warmUp = new WarmUp(node, mbox.self(), spec);
+        ready = false;
+        new Thread(warmUp, "shim-warmup").start();
+    }
+
+    /**
+     * Listen for {@link Bridge} connections as well as Erlang messages. Call
+     * before the factory is running.
+     * 
+     * @param address
+     *            <code>tcp:Port</code>, <code>tcp:Host:Port</code> or
+     *            <code>unix:Path</code>
+     * @throws IOException
+     *             if it can't listen on <code>address</code>
+     */
+    public void bridge(final String address) throws IOException {
+        bridge = new Bridge(this, address);
+        final Thread thread = new Thread(bridge, "bridge-" + address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait until any warm-up is over
+     * 
+     * @throws InterruptedException
+     */
+    void awaitReady() throws InterruptedException {
+        synchronized (deferred) {
+            while (!ready) {
+                deferred.wait();
+            }
+        }
+    }
+
+    /**
+     * The warm-up is over, answer everything that waited for it in order
+     */
+    private void warmedUp() {
+        final List<Deferred> held;
+
+        synchronized (deferred) {
+            ready = true;
+            held = new ArrayList<Deferred>(deferred);
+            deferred.clear();
+            deferred.notifyAll();
+        }
+        for (Deferred d : held) {
+            answer(d.mbox, (OtpErlangPid) d.msg.elementAt(0), d.msg.elementAt(1));
+        }
+    }
+
+    /**
+     * Hold <code>msg</code> until the warm-up is over, if it isn't already
+     * 
+     * @param mbox
+     *            the mbox it came to, and the reply should go from
+     * @param msg
+     * @return true if it was held
+     */
+    private boolean defer(final OtpMbox mbox, final OtpErlangTuple msg) {
+        if (ready) {
+            return false;
+        }
+        synchronized (deferred) {
+            if (ready) {
+                return false;
+            }
+            deferred.add(new Deferred(mbox, msg));
+            return true;
+        }
+    }
+
+    /**
+     * Answer a create, create_many or load message from the creator threads,
+     * so a slow connect doesn't hold up the creates behind it
+     * 
+     * @param mbox
+     *            the mbox to reply from
+     * @param from
+     * @param payload
+     */
+    private void answer(final OtpMbox mbox, final OtpErlangPid from, final OtpErlangObject payload) {
+        if (isTagged(payload, CREATE_MANY, 3)) {
+            createMany(mbox, from, (OtpErlangTuple) payload);
+            return;
+        }
+        creators.execute(new Runnable() {
+            public void run() {
+                mbox.send(from, handle(from, payload));
+            }
+        });
+    }
+
+    /**
+     * @param from
+     * @param payload
+     *            a create or load message
+     * @return the reply
+     */
+    private OtpErlangObject handle(final OtpErlangPid from, final OtpErlangObject payload) {
+        if (isLoad(payload)) {
+            return load(from, (OtpErlangTuple) payload);
+        }
+        return create((OtpErlangTuple) payload);
+    }
+
+    /**
+     * Handle a create message, payload is
+     * <code>{HostTuple, Port, BufferSizeKb, Transport}</code> or
+     * <code>{HostTuple, Port, BufferSizeKb, Transport, Options}</code> where
+     * Options is a proplist understood by {@link ShimOptions}
+     * 
+     * @param payload
+     * @return the new shim's pid or an error tuple
+     */
+    private OtpErlangObject create(final OtpErlangTuple payload) {
+        OtpErlangObject reply;
+
+        try {
+            final ClientConfig config = clientConfig(payload);
+
+            try {
+                // create a new mbox and client, get a Pid to send back
+                reply = newClientShim(config);
+            } catch (IOException e) {
+                // we couldn't create a client, tell the sender
+                reply = reply("error", e.toString());
+            }
+        } catch (OtpErlangRangeException e) {
+            // Port causes a range exception, tell the sender
+            reply = reply("error", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // bad options
+            reply = reply("error", e.getMessage());
+        }
+        return reply;
+    }
+
+    /**
+     * Handle a create_many message, payload is
+     * <code>{create_many, N, Create}</code> where Create is the payload of a
+     * create message. The N shims are created at once on the creator threads
+     * and only started when they all have their connections, then the reply
+     * is <code>{ok, [Pid]}</code>. If any of them fails none are started and
+     * the reply is an error tuple.
+     * 
+     * @param mbox
+     *            the mbox to reply from
+     * @param from
+     * @param payload
+     */
+    private void createMany(final OtpMbox mbox, final OtpErlangPid from, final OtpErlangTuple payload) {
+        final int count;
+        final ClientConfig config;
+
+        if (!(payload.elementAt(1) instanceof OtpErlangLong) || !(payload.elementAt(2) instanceof OtpErlangTuple)) {
+            mbox.send(from, OtpMessageHelper.error("create_many needs {create_many, N, Create}"));
+            return;
+        }
+
+        try {
+            count = ((OtpErlangLong) payload.elementAt(1)).intValue();
+            config = clientConfig((OtpErlangTuple) payload.elementAt(2));
+        } catch (OtpErlangRangeException e) {
+            mbox.send(from, OtpMessageHelper.error(e.getMessage()));
+            return;
+        } catch (IllegalArgumentException e) {
+            // bad options
+            mbox.send(from, OtpMessageHelper.error(e.getMessage()));
+            return;
+        } catch (RuntimeException e) {
+            // a Create that isn't a create payload, this is the serve loop
+            mbox.send(from, OtpMessageHelper.error("bad create " + e));
+            return;
+        }
+
+        if (count < 1) {
+            mbox.send(from, OtpMessageHelper.error("create_many needs N > 0"));
+            return;
+        }
+
+        System.out.println("Spawning " + count + " new mboxen for " + config.getEndpoints() + " with buffer "
+                + config.getBufferSizeKb() + " " + config.getOptions());
+        final ClientShim[] shims = new ClientShim[count];
+        final OtpErlangPid[] pids = new OtpErlangPid[count];
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+
+            creators.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (failure.get() == null) {
+                            final OtpMbox shimMbox = newShimMbox();
+                            boolean created = false;
+
+                            try {
+                                shims[index] = new ClientShim(shimMbox, config);
+                                pids[index] = shimMbox.self();
+                                created = true;
+                            } finally {
+                                if (!created) {
+                                    shimMbox.close();
+                                }
+                            }
+                        }
+                    } catch (Throwable t) {
+                        // fails the whole batch, every shim is closed
+                        failure.compareAndSet(null, "shim " + index + " :: " + t);
+                    } finally {
+                        // the last one done replies, it sees every other's shim
+                        if (remaining.decrementAndGet() == 0) {
+                            createdMany(mbox, from, shims, pids, config.getOptions(), failure.get());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Start every shim of a create_many and reply, or close them all if one
+     * failed
+     * 
+     * @param mbox
+     *            the mbox to reply from
+     * @param from
+     * @param shims
+     * @param pids
+     * @param options
+     *            the options they were created with
+     * @param failure
+     *            null if every shim was created
+     */
+    private void createdMany(final OtpMbox mbox, final OtpErlangPid from, final ClientShim[] shims, final OtpErlangPid[] pids,
+            final ShimOptions options, final String failure) {
+        if (failure != null) {
+            for (ClientShim shim : shims) {
+                if (shim != null) {
+                    shim.close();
+                }
+            }
+            mbox.send(from, OtpMessageHelper.error(failure));
+            return;
+        }
+
+        for (ClientShim shim : shims) {
+            start(shim, options);
+        }
+        mbox.send(from, new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("ok"), new OtpErlangList(pids) }));
+    }
+
+    /**
+     * Handle a load message, payload is <code>{load, Create, Spec}</code>
+     * where Create is the payload of a create message and Spec is a proplist
+     * understood by {@link LoadSpec}. Starts a {@link LoadGenerator} that
+     * reports to <code>from</code>.
+     * 
+     * @param from
+     * @param payload
+     * @return the generator's pid or an error tuple
+     */
+    private OtpErlangObject load(final OtpErlangPid from, final OtpErlangTuple payload) {
+        OtpErlangObject reply;
+
+        try {
+            final ClientConfig config = clientConfig((OtpErlangTuple) payload.elementAt(1));
+            final LoadSpec spec = LoadSpec.from((OtpErlangList) payload.elementAt(2));
+            System.out.println("Starting load generator for " + config.getEndpoints() + " " + spec);
+            final OtpMbox generatorMbox = node.createMbox();
+
+            try {
+                final LoadGenerator generator = new LoadGenerator(generatorMbox, from, config, spec);
+                // not on the executor, the generator mustn't wait behind shims
+                new Thread(generator, "load-" + generatorMbox.self()).start();
+                reply = generatorMbox.self();
+            } catch (IOException e) {
+                generatorMbox.close();
+                reply = reply("error", e.toString());
+            }
+        } catch (OtpErlangRangeException e) {
+            reply = reply("error", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            reply = reply("error", e.getMessage());
+        }
+        return reply;
+    }
+
+    /**
+     * @param payload
+     * @param name
+     * @return true if <code>payload</code> is the atom <code>name</code>
+     */
+    private static boolean isAtom(final OtpErlangObject payload, final String name) {
+        return payload instanceof OtpErlangAtom && name.equals(((OtpErlangAtom) payload).atomValue());
+    }
+
+    /**
+     * @param payload
+     * @return true if <code>payload</code> is a load message
+     */
+    private static boolean isLoad(final OtpErlangObject payload) {
+        return isTagged(payload, LOAD, 3);
+    }
+
+    /**
+     * @param payload
+     * @param tag
+     * @param arity
+     * @return true if <code>payload</code> is an <code>arity</code> tuple
+     *         starting with the atom <code>tag</code>
+     */
+    private static boolean isTagged(final OtpErlangObject payload, final String tag, final int arity) {
+        if (!(payload instanceof OtpErlangTuple) || ((OtpErlangTuple) payload).arity() != arity) {
+            return false;
+        }
+        return isAtom(((OtpErlangTuple) payload).elementAt(0), tag);
+    }
+
+    /**
+     * @param payload
+     *            <code>{Hosts, Port, BufferSizeKb, Transport}</code> or
+     *            <code>{Hosts, Port, BufferSizeKb, Transport, Options}</code>
+     *            where Hosts is a HostTuple or a list of HostTuples and
+     *            <code>{HostTuple, Port}</code>s, Port is the default port
+     * @return the {@link ClientConfig} for <code>payload</code>
+     * @throws OtpErlangRangeException
+     *             if a number is out of range
+     */
+    static ClientConfig clientConfig(final OtpErlangTuple payload) throws OtpErlangRangeException {
+        final int port = ((OtpErlangLong) payload.elementAt(1)).intValue();
+        final List<Endpoint> endpoints = getEndpoints(payload.elementAt(0), port);
+        final int bufferSizeKb = ((OtpErlangLong) payload.elementAt(2)).intValue();
+        final Transport transport = Transport.fromAtom((OtpErlangAtom) payload.elementAt(3));
+        final ShimOptions options = payload.arity() > 4 ? ShimOptions.from((OtpErlangList) payload.elementAt(4))
+                : ShimOptions.defaults();
+
+        return new ClientConfig(endpoints, transport, bufferSizeKb, options);
+    }
+
+    /**
+     * @param hosts
+     *            a HostTuple or a list of HostTuples and
+     *            <code>{HostTuple, Port}</code>s
+     * @param defaultPort
+     *            for HostTuples without a port
+     * @return the endpoints
+     * @throws OtpErlangRangeException
+     *             if a port is out of range
+     */
+    private static List<Endpoint> getEndpoints(final OtpErlangObject hosts, final int defaultPort)
+            throws OtpErlangRangeException {
+        final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+        if (!(hosts instanceof OtpErlangList)) {
+            endpoints.add(new Endpoint(getHost((OtpErlangTuple) hosts), defaultPort));
+            return endpoints;
+        }
+
+        for (OtpErlangObject o : (OtpErlangList) hosts) {
+            final OtpErlangTuple host = (OtpErlangTuple) o;
+
+            if (host.arity() == 2 && host.elementAt(0) instanceof OtpErlangTuple) {
+                endpoints.add(new Endpoint(getHost((OtpErlangTuple) host.elementAt(0)),
+                                           ((OtpErlangLong) host.elementAt(1)).intValue()));
+            } else {
+                endpoints.add(new Endpoint(getHost(host), defaultPort));
+            }
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("no hosts");
+        }
+        return endpoints;
+    }
+
+    /**
+     * Merged latency percentiles for every shim this factory has created, and
+     * the state of everything the shims share, see the README for the keys
+     * 
+     * @return <code>{stats, [{Op, [{count, N}, {p50, Us}, ...]}, ...]}</code>
+     */
+    private OtpErlangObject stats() {
+        final List<OtpErlangObject> stats = new ArrayList<OtpErlangObject>();
+
+        for (OtpErlangObject opStats : LatencyStats.merge(shimStats)) {
+            stats.add(opStats);
+        }
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("pools"),
+                                                            ClientFactory.sharedPoolStats() }));
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("memory"),
+                                                            ClientFactory.memoryStoreStats() }));
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("async"),
+                                                            ClientFactory.asyncClientStats() }));
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("cache"),
+                                                            ClientFactory.vclockCacheStats() }));
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("chain"), chainStats() }));
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("nodes"),
+                                                            ClientFactory.endpointStats() }));
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("backlog"),
+                                                            Backlog.merge(backlogs) }));
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("spares"),
+                                                            ClientFactory.spareClientStats() }));
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("limits"),
+                                                            ClientFactory.concurrencyLimitStats() }));
+        stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("otp_nodes"), nodeStats() }));
+        if (bridge != null) {
+            stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("bridge"), bridge.stats() }));
+        }
+        if (warmUp != null) {
+            stats.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("warmup"), warmUp.stats() }));
+        }
+
+        return new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom(STATS),
+                                                         new OtpErlangList(stats.toArray(new OtpErlangObject[stats.size()])) });
+    }
+
+    /**
+     * @return <code>[{entries, N}, {hits, N}, {misses, N}, {conflicts, N}]</code>
+     *         summed over the chained update caches of every shim
+     */
+    private OtpErlangList chainStats() {
+        long entries = 0, hits = 0, misses = 0, conflicts = 0;
+
+        for (VClockCache cache : chainCaches) {
+            entries += cache.getEntries();
+            hits += cache.getHits();
+            misses += cache.getMisses();
+            conflicts += cache.getConflicts();
+        }
+        return new OtpErlangList(new OtpErlangObject[] { prop("entries", entries), prop("hits", hits),
+                                                        prop("misses", misses), prop("conflicts", conflicts) });
     }
 
     /**
      * clean up
      */
     private void shutdown() {
+        if (bridge != null) {
+            bridge.shutdown();
+        }
+        creators.shutdown();
         executorService.shutdown();
-        mbox.exit("interrupted");
+
+        for (OtpMbox m : mboxes) {
+            m.exit("interrupted");
+        }
     }
 
     /**
@@ -111,7 +635,7 @@ public class Factory implements Runnable {
      * @param hostTuple
      * @return string representation of an erlang ip tuple
      */
-    private String getHost(OtpErlangTuple hostTuple) {
+    static String getHost(OtpErlangTuple hostTuple) {
         final StringBuilder host = new StringBuilder();
 
         boolean first = true;
@@ -128,21 +652,97 @@ public class Factory implements Runnable {
 
     /**
      * Create a {@link ClientShim} runnable and execute it with the
-     * {@link ExecutorService}
+     * {@link ExecutorService} of the {@link Engine}
      * 
-     * @param host
-     *            that the client should connect to
-     * @param port
-     *            that the client should connect to
+     * @param config
+     *            the node(s) the client should connect to and the
+     *            {@link ShimOptions} for the new client
      * @return the {@link OtpErlangPid} of a new {@link OtpMbox} created to
      *         handle messages for the new client
      * @throws IOException
      */
-    private OtpErlangPid newClientShim(final String host, final int port, final int bufferSizeKb, final Transport transport) throws IOException {
-        System.out.println("Spawning new mbox for " + host + ":" + port + " with buffer " + bufferSizeKb);
-        OtpMbox mbox = node.createMbox();
+    private OtpErlangPid newClientShim(final ClientConfig config) throws IOException {
+        final ShimOptions options = config.getOptions();
+        System.out.println("Spawning new mbox for " + config.getEndpoints() + " with buffer "
+                + config.getBufferSizeKb() + " " + options);
+        OtpMbox mbox = newShimMbox();
         OtpErlangPid pid = mbox.self();
-        executorService.execute(new ClientShim(mbox, host, port, bufferSizeKb, transport));
+        start(new ClientShim(mbox, config), options);
         return pid;
     }
+
+    /**
+     * Count the shim in the stats and execute it with the
+     * {@link ExecutorService} of the {@link Engine}
+     * 
+     * @param shim
+     * @param options
+     *            the options it was created with
+     */
+    private void start(final ClientShim shim, final ShimOptions options) {
+        track(shim, options);
+
+        if (!engine.isCooperative()) {
+            executorService.execute(shim);
+        } else if (!new CooperativeShim(shim, executorService).start()) {
+            // can't be told about deliveries, block on the mailbox instead
+            executorService.execute(shim);
+        }
+    }
+
+    /**
+     * Count the shim in the stats
+     * 
+     * @param shim
+     * @param options
+     *            the options it was created with
+     */
+    void track(final ClientShim shim, final ShimOptions options) {
+        shimStats.add(shim.getStats());
+        backlogs.add(shim.getBacklog());
+        if (options.isChained()) {
+            chainCaches.add(shim.getCache());
+        }
+    }
+
+    /**
+     * @return a new mbox for a shim, on the next node round robin
+     */
+    OtpMbox newShimMbox() {
+        return nextNode().createMbox();
+    }
+
+    /**
+     * @return the node for the next shim, round robin
+     */
+    private OtpNode nextNode() {
+        final int i = (int) (nextNode.getAndIncrement() % nodes.length);
+        nodeShims[i].incrementAndGet();
+        return nodes[i];
+    }
+
+    /**
+     * @return <code>[{NodeName, Shims}]</code> for every node
+     */
+    private OtpErlangList nodeStats() {
+        final OtpErlangObject[] stats = new OtpErlangObject[nodes.length];
+
+        for (int i = 0; i < nodes.length; i++) {
+            stats[i] = prop(nodes[i].node(), nodeShims[i].get());
+        }
+        return new OtpErlangList(stats);
+    }
+
+    /**
+     * A create or load message held until the warm-up is over
+     */
+    private static final class Deferred {
+        private final OtpMbox mbox;
+        private final OtpErlangTuple msg;
+
+        private Deferred(final OtpMbox mbox, final OtpErlangTuple msg) {
+            this.mbox = mbox;
+            this.msg = msg;
+        }
+    }
 }
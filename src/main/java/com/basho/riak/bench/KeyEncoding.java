@@ -0,0 +1,94 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.basho.riak.client.util.CharsetUtils;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+
+/**
+ * How the bucket and key bytes from basho_bench become the strings the
+ * riak-java-client takes
+ * 
+ * @author russell
+ * 
+ */
+public enum KeyEncoding {
+
+    /**
+     * Chunked Base64, what the shim has always sent, so results compare with
+     * older runs
+     */
+    BASE64 {
+        String encode(byte[] bytes) {
+            return CharsetUtils.asString(Base64.encodeBase64Chunked(bytes), CharsetUtils.ISO_8859_1);
+        }
+    },
+    /**
+     * The bytes as they are, the same buckets and keys as the Erlang riakc
+     * driver. One char per byte, {@link #decode(String)} gets the bytes back
+     * for the transport.
+     */
+    BINARY {
+        String encode(byte[] bytes) {
+            return CharsetUtils.asString(bytes, CharsetUtils.ISO_8859_1);
+        }
+    },
+    /**
+     * Unchunked, URL safe Base64, what {@link #BINARY} becomes over
+     * {@link Transport#HTTP}
+     */
+    URL_SAFE {
+        String encode(byte[] bytes) {
+            return Base64.encodeBase64URLSafeString(bytes);
+        }
+    };
+
+    /**
+     * @param bytes
+     * @return the string for <code>bytes</code>
+     */
+    abstract String encode(byte[] bytes);
+
+    /**
+     * @param binary
+     *            a string made by {@link #BINARY}
+     * @return the original bytes
+     */
+    static byte[] decode(String binary) {
+        return CharsetUtils.asBytes(binary, CharsetUtils.ISO_8859_1);
+    }
+
+    /**
+     * @param transport
+     * @return the encoding to use over <code>transport</code>, HTTP can't
+     *         take raw bytes in a URL so {@link #BINARY} is URL safe there
+     */
+    public KeyEncoding forTransport(Transport transport) {
+        return this == BINARY && transport == Transport.HTTP ? URL_SAFE : this;
+    }
+
+    /**
+     * @param atom
+     * @return the {@link KeyEncoding}
+     */
+    public static KeyEncoding fromAtom(OtpErlangAtom atom) {
+        try {
+            return KeyEncoding.valueOf(atom.atomValue().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown key encoding " + atom);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static com.basho.riak.bench.ShimOptions.longValue;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * Makes keys in the shim, from a basho_bench style <code>key_generator</code>
+ * spec: <code>{sequential_int, N}</code>, <code>{uniform_int, N}</code> or
+ * <code>{pareto_int, N}</code>, optionally wrapped in <code>{int_to_bin, _}</code>
+ * (the default, a 32 bit little endian binary as basho_bench makes on x86) or
+ * <code>{int_to_str, _}</code>.
+ * <p>
+ * A key is a pure function of a seed, so basho_bench need only send the seed
+ * (or nothing, and the shim counts). Sequential keys are the seed modulo N,
+ * uniform and pareto keys are drawn from a hash of the seed.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class KeyGenerator {
+
+    private enum Distribution {
+        SEQUENTIAL_INT, UNIFORM_INT, PARETO_INT;
+    }
+
+    // as basho_bench
+    private static final double PARETO_SHAPE = 1.5;
+
+    private final Distribution distribution;
+    private final long max;
+    private final boolean toStr;
+    private final double paretoScale;
+
+    private KeyGenerator(Distribution distribution, long max, boolean toStr) {
+        this.distribution = distribution;
+        this.max = max;
+        this.toStr = toStr;
+        this.paretoScale = (long) (max * 0.2) * (PARETO_SHAPE - 1);
+    }
+
+    /**
+     * @param seed
+     * @return the key for <code>seed</code>
+     */
+    public byte[] key(long seed) {
+        final long n = number(seed);
+
+        if (toStr) {
+            return Long.toString(n).getBytes();
+        }
+        return new byte[] { (byte) n, (byte) (n >>> 8), (byte) (n >>> 16), (byte) (n >>> 24) };
+    }
+
+    /**
+     * @param seed
+     * @return the key number for <code>seed</code>, in [0, N)
+     */
+    long number(long seed) {
+        switch (distribution) {
+        case SEQUENTIAL_INT:
+            return mod(seed, max);
+        case UNIFORM_INT:
+            return mod(mix(seed), max);
+        case PARETO_INT:
+            final double u = 1.0 - uniform(seed);
+            return mod((long) ((Math.pow(u, -1 / PARETO_SHAPE) - 1) * paretoScale), max);
+        default:
+            throw new IllegalStateException(distribution.name());
+        }
+    }
+
+    /**
+     * @param spec
+     * @return the generator for <code>spec</code>
+     */
+    public static KeyGenerator from(OtpErlangObject spec) {
+        final OtpErlangTuple tuple = tuple(spec);
+        final String name = ((OtpErlangAtom) tuple.elementAt(0)).atomValue();
+
+        if ("int_to_bin".equals(name) || "int_to_str".equals(name)) {
+            return from(tuple(tuple.elementAt(1)), "int_to_str".equals(name));
+        }
+        return from(tuple, false);
+    }
+
+    private static KeyGenerator from(OtpErlangTuple spec, boolean toStr) {
+        final String name = ((OtpErlangAtom) spec.elementAt(0)).atomValue();
+        final long max = longValue(spec.elementAt(1));
+        Distribution distribution;
+
+        try {
+            distribution = Distribution.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown key generator " + spec);
+        }
+        if (max <= 0) {
+            throw new IllegalArgumentException("key generator " + spec + " needs N > 0");
+        }
+        return new KeyGenerator(distribution, max, toStr);
+    }
+
+    private static OtpErlangTuple tuple(OtpErlangObject spec) {
+        if (!(spec instanceof OtpErlangTuple) || ((OtpErlangTuple) spec).arity() < 2) {
+            throw new IllegalArgumentException("bad generator " + spec);
+        }
+        return (OtpErlangTuple) spec;
+    }
+
+    /**
+     * SplitMix64's finalizer, spreads consecutive seeds over all 64 bits
+     * 
+     * @param seed
+     * @return a well mixed hash of <code>seed</code>
+     */
+    static long mix(long seed) {
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @param seed
+     * @return a double in [0, 1) derived from <code>seed</code>
+     */
+    static double uniform(long seed) {
+        return (mix(seed) >>> 11) * (1.0 / (1L << 53));
+    }
+
+    static long mod(long n, long m) {
+        final long r = n % m;
+        return r < 0 ? r + m : r;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return String.format("{%s, {%s, %s}}", toStr ? "int_to_str" : "int_to_bin",
+                             distribution.name().toLowerCase(), max);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed memory, log-linear latency histogram in the style of HdrHistogram.
+ * Values (microseconds) below {@link #SUB_BUCKETS} are recorded exactly, above
+ * that each power of two is split into {@link #HALF_BUCKETS} linear buckets, so
+ * the relative error is bounded at ~3%. Values above
+ * {@link #MAX_TRACKABLE} are clamped (but still counted for the max).
+ * <p>
+ * Recording is lock free and safe from many threads, reading a percentile
+ * while recording goes on gives a close enough answer for reporting.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = SUB_BUCKETS >> 1;
+    private static final int MAX_MAGNITUDE = 36; // 2^36us is ~19 hours
+    private static final long MAX_TRACKABLE = (1L << MAX_MAGNITUDE) - 1;
+    private static final int BUCKETS = indexFor(MAX_TRACKABLE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a single value
+     * 
+     * @param micros
+     *            the latency in microseconds, negative values are recorded as
+     *            0
+     */
+    public void record(long micros) {
+        final long value = micros < 0 ? 0 : micros;
+        counts.incrementAndGet(indexFor(Math.min(value, MAX_TRACKABLE)));
+        total.incrementAndGet();
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Add all the counts of <code>other</code> into this histogram
+     * 
+     * @param other
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+
+        final long otherMax = other.max.get();
+        long current = max.get();
+        while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return the largest recorded value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile
+     *            between 0.0 and 100.0
+     * @return the highest value equivalent to the bucket that contains
+     *         <code>percentile</code>, or 0 if nothing is recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        final long count = total.get();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        final long target = Math.max(1, (long) Math.ceil((Math.min(percentile, 100.0) / 100.0) * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @param value
+     *            a non negative value no larger than {@link #MAX_TRACKABLE}
+     * @return the bucket index for <code>value</code>
+     */
+    private static int indexFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // shift such that (value >> shift) is in [HALF_BUCKETS, SUB_BUCKETS)
+        final int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF_BUCKETS + (int) ((value >> shift) - HALF_BUCKETS);
+    }
+
+    /**
+     * @param index
+     * @return the largest value that would be recorded at <code>index</code>
+     */
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = ((index - SUB_BUCKETS) / HALF_BUCKETS) + 1;
+        final long sub = ((index - SUB_BUCKETS) % HALF_BUCKETS) + HALF_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static com.basho.riak.bench.OtpMessageHelper.prop;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * Per {@link ClientShim} latency of the {@link com.basho.riak.client.raw.RawClient}
+ * calls, split by {@link Op}. Histograms are only allocated for {@link Op}s
+ * that are actually used.
+ * 
+ * @author russell
+ * 
+ */
+public class LatencyStats {
+
+    private static final Op[] OPS = Op.values();
+
+    private final AtomicReferenceArray<LatencyHistogram> histograms = new AtomicReferenceArray<LatencyHistogram>(OPS.length);
+
+    /**
+     * @param op
+     * @param micros
+     *            how long <code>op</code> took
+     */
+    public void record(Op op, long micros) {
+        histogramFor(op).record(micros);
+    }
+
+    /**
+     * @param op
+     * @return the (possibly new) histogram for <code>op</code>
+     */
+    private LatencyHistogram histogramFor(Op op) {
+        LatencyHistogram h = histograms.get(op.ordinal());
+
+        if (h == null) {
+            histograms.compareAndSet(op.ordinal(), null, new LatencyHistogram());
+            h = histograms.get(op.ordinal());
+        }
+        return h;
+    }
+
+    /**
+     * Merge all <code>stats</code> and render them as a proplist of
+     * <code>[{Op, [{count, N}, {p50, Us}, {p99, Us}, {p999, Us}, {max, Us}]}]</code>
+     * 
+     * @param stats
+     * @return an {@link OtpErlangList} proplist, ops with no recorded values
+     *         are left out
+     */
+    public static OtpErlangList merge(Collection<LatencyStats> stats) {
+        final List<OtpErlangObject> perOp = new ArrayList<OtpErlangObject>();
+
+        for (Op op : OPS) {
+            final LatencyHistogram merged = new LatencyHistogram();
+
+            for (LatencyStats s : stats) {
+                LatencyHistogram h = s.histograms.get(op.ordinal());
+                if (h != null) {
+                    merged.add(h);
+                }
+            }
+
+            if (merged.getCount() > 0) {
+                perOp.add(new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom(op.getName()),
+                                                                    toProplist(merged) }));
+            }
+        }
+
+        return new OtpErlangList(perOp.toArray(new OtpErlangObject[perOp.size()]));
+    }
+
+    /**
+     * @param h
+     * @return the summary proplist for <code>h</code>
+     */
+    private static OtpErlangList toProplist(LatencyHistogram h) {
+        return new OtpErlangList(new OtpErlangObject[] { prop("count", h.getCount()),
+                                                        prop("p50", h.getValueAtPercentile(50.0)),
+                                                        prop("p99", h.getValueAtPercentile(99.0)),
+                                                        prop("p999", h.getValueAtPercentile(99.9)),
+                                                        prop("max", h.getMax()) });
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+
+/**
+ * How a {@link ConcurrencyLimit} moves its limit
+ * 
+ * @author russell
+ * 
+ */
+public enum LimitAlgorithm {
+
+    /**
+     * Additive increase, multiplicative decrease: one more request in flight
+     * each round trip while latency holds, a tenth fewer when it climbs past
+     * the tolerance or a request fails
+     */
+    AIMD,
+    /**
+     * The limit follows the ratio of the base to the recent round trip, so
+     * it shrinks as queues build, and grows by the square root of the limit
+     * while they don't
+     */
+    GRADIENT;
+
+    /**
+     * @param atom
+     * @return the {@link LimitAlgorithm}
+     */
+    public static LimitAlgorithm fromAtom(OtpErlangAtom atom) {
+        try {
+            return LimitAlgorithm.valueOf(atom.atomValue().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown limit " + atom);
+        }
+    }
+}
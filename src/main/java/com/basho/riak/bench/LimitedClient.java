@@ -0,0 +1,275 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import com.basho.riak.client.IRiakObject;
+import com.basho.riak.client.bucket.BucketProperties;
+import com.basho.riak.client.query.MapReduceResult;
+import com.basho.riak.client.query.NodeStats;
+import com.basho.riak.client.query.WalkResult;
+import com.basho.riak.client.raw.DeleteMeta;
+import com.basho.riak.client.raw.FetchMeta;
+import com.basho.riak.client.raw.RawClient;
+import com.basho.riak.client.raw.RiakResponse;
+import com.basho.riak.client.raw.StoreMeta;
+import com.basho.riak.client.raw.Transport;
+import com.basho.riak.client.raw.query.LinkWalkSpec;
+import com.basho.riak.client.raw.query.MapReduceSpec;
+import com.basho.riak.client.raw.query.MapReduceTimeoutException;
+import com.basho.riak.client.raw.query.indexes.IndexQuery;
+import com.basho.riak.pbc.RiakError;
+
+/**
+ * A {@link RawClient} that takes a slot from its node's
+ * {@link ConcurrencyLimit} for every request to Riak, and reports the round
+ * trip back to it. Client id calls are local, or only made as a client
+ * connects, and go straight through.
+ * 
+ * @author russell
+ * 
+ */
+public class LimitedClient implements RawClient {
+
+    private final RawClient delegate;
+    private final ConcurrencyLimit limit;
+    private final long waitMs;
+
+    /**
+     * @param delegate
+     *            the node's client
+     * @param limit
+     *            the node's limit
+     * @param waitMs
+     *            how long a request waits for a slot, see
+     *            {@link ConcurrencyLimit#acquire(long)}
+     */
+    public LimitedClient(RawClient delegate, ConcurrencyLimit limit, long waitMs) {
+        this.delegate = delegate;
+        this.limit = limit;
+        this.waitMs = waitMs;
+    }
+
+    /**
+     * @return the node's client, see {@link ClientAbort}
+     */
+    RawClient getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * A request to Riak
+     */
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Make <code>call</code> once there's a slot for it
+     * 
+     * @param call
+     * @return its result
+     * @throws IOException
+     *             the call's error, or a
+     *             {@link ConcurrencyLimit.LimitExceededException} if there was
+     *             no slot in time
+     */
+    private <T> T execute(Call<T> call) throws IOException {
+        final long admitted = limit.acquire(waitMs);
+        final long start = System.nanoTime();
+        boolean ok = false;
+
+        try {
+            final T result = call.call();
+            ok = true;
+            return result;
+        } catch (RiakError e) {
+            // Riak answered, the round trip counts even if the request failed
+            ok = true;
+            throw e;
+        } finally {
+            limit.release(admitted, (System.nanoTime() - start) / 1000, ok);
+        }
+    }
+
+    public RiakResponse head(final String bucket, final String key, final FetchMeta fetchMeta) throws IOException {
+        return execute(new Call<RiakResponse>() {
+            public RiakResponse call() throws IOException {
+                return delegate.head(bucket, key, fetchMeta);
+            }
+        });
+    }
+
+    public RiakResponse fetch(final String bucket, final String key) throws IOException {
+        return execute(new Call<RiakResponse>() {
+            public RiakResponse call() throws IOException {
+                return delegate.fetch(bucket, key);
+            }
+        });
+    }
+
+    public RiakResponse fetch(final String bucket, final String key, final int readQuorum) throws IOException {
+        return execute(new Call<RiakResponse>() {
+            public RiakResponse call() throws IOException {
+                return delegate.fetch(bucket, key, readQuorum);
+            }
+        });
+    }
+
+    public RiakResponse fetch(final String bucket, final String key, final FetchMeta fetchMeta) throws IOException {
+        return execute(new Call<RiakResponse>() {
+            public RiakResponse call() throws IOException {
+                return delegate.fetch(bucket, key, fetchMeta);
+            }
+        });
+    }
+
+    public RiakResponse store(final IRiakObject object, final StoreMeta storeMeta) throws IOException {
+        return execute(new Call<RiakResponse>() {
+            public RiakResponse call() throws IOException {
+                return delegate.store(object, storeMeta);
+            }
+        });
+    }
+
+    public void store(final IRiakObject object) throws IOException {
+        execute(new Call<Void>() {
+            public Void call() throws IOException {
+                delegate.store(object);
+                return null;
+            }
+        });
+    }
+
+    public void delete(final String bucket, final String key) throws IOException {
+        execute(new Call<Void>() {
+            public Void call() throws IOException {
+                delegate.delete(bucket, key);
+                return null;
+            }
+        });
+    }
+
+    public void delete(final String bucket, final String key, final int deleteQuorum) throws IOException {
+        execute(new Call<Void>() {
+            public Void call() throws IOException {
+                delegate.delete(bucket, key, deleteQuorum);
+                return null;
+            }
+        });
+    }
+
+    public void delete(final String bucket, final String key, final DeleteMeta deleteMeta) throws IOException {
+        execute(new Call<Void>() {
+            public Void call() throws IOException {
+                delegate.delete(bucket, key, deleteMeta);
+                return null;
+            }
+        });
+    }
+
+    public Set<String> listBuckets() throws IOException {
+        return execute(new Call<Set<String>>() {
+            public Set<String> call() throws IOException {
+                return delegate.listBuckets();
+            }
+        });
+    }
+
+    public BucketProperties fetchBucket(final String bucketName) throws IOException {
+        return execute(new Call<BucketProperties>() {
+            public BucketProperties call() throws IOException {
+                return delegate.fetchBucket(bucketName);
+            }
+        });
+    }
+
+    public void updateBucket(final String name, final BucketProperties bucketProperties) throws IOException {
+        execute(new Call<Void>() {
+            public Void call() throws IOException {
+                delegate.updateBucket(name, bucketProperties);
+                return null;
+            }
+        });
+    }
+
+    public Iterable<String> listKeys(final String bucketName) throws IOException {
+        return execute(new Call<Iterable<String>>() {
+            public Iterable<String> call() throws IOException {
+                return delegate.listKeys(bucketName);
+            }
+        });
+    }
+
+    public WalkResult linkWalk(final LinkWalkSpec linkWalkSpec) throws IOException {
+        return execute(new Call<WalkResult>() {
+            public WalkResult call() throws IOException {
+                return delegate.linkWalk(linkWalkSpec);
+            }
+        });
+    }
+
+    public MapReduceResult mapReduce(MapReduceSpec spec) throws IOException, MapReduceTimeoutException {
+        // not limited, a long running job says nothing about the node's queues
+        return delegate.mapReduce(spec);
+    }
+
+    public byte[] generateAndSetClientId() throws IOException {
+        return delegate.generateAndSetClientId();
+    }
+
+    public void setClientId(byte[] clientId) throws IOException {
+        delegate.setClientId(clientId);
+    }
+
+    public byte[] getClientId() throws IOException {
+        return delegate.getClientId();
+    }
+
+    public void ping() throws IOException {
+        execute(new Call<Void>() {
+            public Void call() throws IOException {
+                delegate.ping();
+                return null;
+            }
+        });
+    }
+
+    public List<String> fetchIndex(final IndexQuery indexQuery) throws IOException {
+        return execute(new Call<List<String>>() {
+            public List<String> call() throws IOException {
+                return delegate.fetchIndex(indexQuery);
+            }
+        });
+    }
+
+    public Transport getTransport() {
+        return delegate.getTransport();
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    public NodeStats stats() throws IOException {
+        return execute(new Call<NodeStats>() {
+            public NodeStats call() throws IOException {
+                return delegate.stats();
+            }
+        });
+    }
+}
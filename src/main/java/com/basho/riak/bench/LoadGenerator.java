@@ -0,0 +1,249 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static com.basho.riak.bench.OtpMessageHelper.prop;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.basho.riak.client.raw.RawClient;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpMbox;
+
+/**
+ * An open loop load generator. Requests are scheduled at a fixed rate from
+ * the start time, whether or not earlier ones have finished, and latency is
+ * measured from when a request <em>should</em> have been sent, so a stall
+ * shows up in the latencies of everything scheduled behind it instead of
+ * quietly lowering the rate (coordinated omission).
+ * <p>
+ * {@link LoadSpec#getConcurrency()} workers, each with its own connection,
+ * take the next slot in the schedule, wait for its time and run it. Every
+ * report interval <code>{load_report, Self, Stats}</code> is sent to whoever
+ * asked for the load, then <code>{load_done, Self, Stats}</code> at the end.
+ * Send the generator <code>stop</code> to end early.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class LoadGenerator implements Runnable {
+
+    private static final String STOP = "stop";
+    private static final OtpErlangAtom ERROR = new OtpErlangAtom("error");
+    // a send this far behind schedule means every worker was busy
+    private static final long LATE_NANOS = 1000000;
+
+    private final OtpMbox mbox;
+    private final OtpErlangPid reportTo;
+    private final LoadSpec spec;
+    private final SyncOps ops;
+    private final RawClient[] clients;
+    private final KeyEncoding keyEncoding;
+    private final double intervalNanos;
+    private final AtomicLong slots = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+    private final AtomicReference<LatencyStats> interval = new AtomicReference<LatencyStats>(new LatencyStats());
+    private final LatencyStats total = new LatencyStats();
+    private volatile boolean running = true;
+    private volatile long start;
+    private volatile long end;
+
+    /**
+     * @param mbox
+     *            the generator's own mbox
+     * @param reportTo
+     *            where to send reports
+     * @param config
+     *            what to connect to
+     * @param spec
+     * @throws IOException
+     *             if the connections can't be made
+     */
+    public LoadGenerator(OtpMbox mbox, OtpErlangPid reportTo, ClientConfig config, LoadSpec spec)
+            throws IOException {
+        this.mbox = mbox;
+        this.reportTo = reportTo;
+        this.spec = spec;
+        this.ops = new SyncOps(config.getOptions().isCached() ? ClientFactory.vclockCache(config) : null,
+                               config.getHost());
+        this.keyEncoding = config.getKeyEncoding();
+        this.intervalNanos = 1000000000d / spec.getRate();
+        this.clients = new RawClient[spec.getConcurrency()];
+
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = ClientFactory.newClient(config);
+                clients[i].generateAndSetClientId();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        final long reportNanos = spec.getReportMs() * 1000000;
+        start = System.nanoTime();
+        end = spec.getDurationMs() > 0 ? start + spec.getDurationMs() * 1000000 : Long.MAX_VALUE;
+
+        final Thread[] workers = new Thread[clients.length];
+
+        for (int i = 0; i < workers.length; i++) {
+            final RawClient client = clients[i];
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work(client);
+                }
+            }, "load-" + mbox.self() + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        long nextReport = start + reportNanos;
+
+        try {
+            while (running) {
+                final long now = System.nanoTime();
+
+                if (now >= end) {
+                    break;
+                }
+                if (now >= nextReport) {
+                    report("load_report", interval.getAndSet(new LatencyStats()));
+                    nextReport += reportNanos;
+                    continue;
+                }
+
+                final OtpErlangObject msg = mbox.receive(Math.max(1, (Math.min(nextReport, end) - now) / 1000000));
+
+                if (msg instanceof OtpErlangAtom && STOP.equals(((OtpErlangAtom) msg).atomValue())) {
+                    break;
+                }
+            }
+        } catch (OtpErlangExit e) {
+            // stop
+        } catch (OtpErlangDecodeException e) {
+            e.printStackTrace();
+        }
+
+        running = false;
+
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        report("load_done", total);
+        close();
+        mbox.exit("normal");
+    }
+
+    /**
+     * Run scheduled slots until the end, or stopped
+     */
+    private void work(RawClient client) {
+        final Args args = new Args(keyEncoding);
+        final Random random = new Random();
+
+        while (running) {
+            final long slot = slots.getAndIncrement();
+            final long intended = start + (long) (slot * intervalNanos);
+
+            if (intended >= end) {
+                break;
+            }
+
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0 && running) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!running) {
+                break;
+            }
+            if (-wait > LATE_NANOS) {
+                late.incrementAndGet();
+            }
+
+            final Op op = spec.nextOp(random);
+            final OtpErlangObject reply = ops.perform(op, spec.nextArgs(op, slot, args), client);
+            final long micros = (System.nanoTime() - intended) / 1000;
+
+            interval.get().record(op, micros);
+            total.record(op, micros);
+            completed.incrementAndGet();
+
+            if (isError(reply)) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Send
+     * <code>{Tag, Self, [{elapsed_ms, N}, {rate, N}, {ops, N}, {errors, N}, {late, N}, {latency, [...]}]}</code>
+     * where the counts are totals so far and the latencies are from
+     * <code>stats</code>
+     */
+    private void report(String tag, LatencyStats stats) {
+        final OtpErlangList latency = LatencyStats.merge(Collections.singleton(stats));
+        final OtpErlangList body = new OtpErlangList(new OtpErlangObject[] {
+                prop("elapsed_ms", (System.nanoTime() - start) / 1000000),
+                prop("rate", (long) spec.getRate()),
+                prop("ops", completed.get()),
+                prop("errors", errors.get()),
+                prop("late", late.get()),
+                new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("latency"), latency }) });
+
+        mbox.send(reportTo, new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom(tag), mbox.self(), body }));
+    }
+
+    private static boolean isError(OtpErlangObject reply) {
+        if (reply == Replies.ERROR_NOTFOUND) {
+            return true;
+        }
+        return reply instanceof OtpErlangTuple && ((OtpErlangTuple) reply).arity() > 0
+                && ((OtpErlangTuple) reply).elementAt(0).equals(ERROR);
+    }
+
+    private void close() {
+        for (RawClient client : clients) {
+            if (client != null) {
+                client.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static com.basho.riak.bench.ShimOptions.intValue;
+import static com.basho.riak.bench.ShimOptions.longValue;
+
+import java.util.Random;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * What a {@link LoadGenerator} should do, parsed from the proplist of a
+ * factory "load" message: <code>{rate, OpsPerSec}</code>,
+ * <code>{duration, Secs}</code>, <code>{concurrency, N}</code>,
+ * <code>{mix, [{Op, Weight}]}</code>, <code>{bucket, Bin}</code>,
+ * <code>{keys, N}</code>, <code>{value_size, Bytes}</code>,
+ * <code>{key_generator, Spec}</code>, <code>{value_generator, Spec}</code>,
+ * <code>{r, N}</code>, <code>{w, N}</code>, <code>{dw, N}</code> and
+ * <code>{report, Ms}</code>. Everything but rate has a default. keys and
+ * value_size are short for <code>{int_to_bin, {uniform_int, N}}</code> and
+ * <code>{fixed_bin, Bytes}</code>, see {@link KeyGenerator} and
+ * {@link ValueGenerator}.
+ * 
+ * @author russell
+ * 
+ */
+public class LoadSpec {
+
+    private double rate = 0;
+    private long durationMs = 60000;
+    private int concurrency = 16;
+    private Op[] ops = { Op.GET };
+    private int[] weights = { 1 };
+    private int totalWeight = 1;
+    private byte[] bucket = "test".getBytes();
+    private int keys = 10000;
+    private int valueSize = 100;
+    private int r = 2;
+    private int w = 2;
+    private int dw = 0;
+    private long reportMs = 1000;
+    private KeyGenerator keyGenerator;
+    private ValueGenerator valueGenerator;
+
+    /**
+     * @return the target rate, ops per second
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return how long to run for, 0 for until stopped
+     */
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * @return the most requests that can be in flight at once
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return how often to report
+     */
+    public long getReportMs() {
+        return reportMs;
+    }
+
+    /**
+     * @param random
+     * @return an {@link Op} drawn from the mix
+     */
+    public Op nextOp(Random random) {
+        int n = random.nextInt(totalWeight);
+
+        for (int i = 0; i < ops.length; i++) {
+            if (n < weights[i]) {
+                return ops[i];
+            }
+            n -= weights[i];
+        }
+        return ops[ops.length - 1];
+    }
+
+    /**
+     * Fill <code>args</code> for <code>op</code> with the generated key and
+     * value for <code>seed</code>
+     * 
+     * @param op
+     * @param seed
+     *            the request's slot in the schedule
+     * @param args
+     * @return <code>args</code>
+     */
+    public Args nextArgs(Op op, long seed, Args args) {
+        return args.set(op, bucket, keyGenerator.key(seed), op.isWrite() ? valueGenerator.value(seed) : null, r, w,
+                        dw);
+    }
+
+    /**
+     * @param spec
+     * @return the {@link LoadSpec}
+     */
+    public static LoadSpec from(final OtpErlangList spec) {
+        final LoadSpec loadSpec = new LoadSpec();
+
+        for (OtpErlangObject option : spec) {
+            if (!(option instanceof OtpErlangTuple) || ((OtpErlangTuple) option).arity() != 2) {
+                throw new IllegalArgumentException(option.toString() + " is not a 2 tuple");
+            }
+
+            final OtpErlangTuple optionTuple = (OtpErlangTuple) option;
+            final String name = ((OtpErlangAtom) optionTuple.elementAt(0)).atomValue();
+            final OtpErlangObject value = optionTuple.elementAt(1);
+
+            if ("rate".equals(name)) {
+                loadSpec.rate = longValue(value);
+            } else if ("duration".equals(name)) {
+                loadSpec.durationMs = Math.max(0, longValue(value)) * 1000;
+            } else if ("concurrency".equals(name)) {
+                loadSpec.concurrency = Math.max(1, intValue(value));
+            } else if ("mix".equals(name)) {
+                loadSpec.mix((OtpErlangList) value);
+            } else if ("bucket".equals(name)) {
+                loadSpec.bucket = ((OtpErlangBinary) value).binaryValue();
+            } else if ("keys".equals(name)) {
+                loadSpec.keys = Math.max(1, intValue(value));
+            } else if ("value_size".equals(name)) {
+                loadSpec.valueSize = Math.max(0, intValue(value));
+            } else if ("key_generator".equals(name)) {
+                loadSpec.keyGenerator = KeyGenerator.from(value);
+            } else if ("value_generator".equals(name)) {
+                loadSpec.valueGenerator = ValueGenerator.from(value);
+            } else if ("r".equals(name)) {
+                loadSpec.r = intValue(value);
+            } else if ("w".equals(name)) {
+                loadSpec.w = intValue(value);
+            } else if ("dw".equals(name)) {
+                loadSpec.dw = intValue(value);
+            } else if ("report".equals(name)) {
+                loadSpec.reportMs = Math.max(10, longValue(value));
+            }
+        }
+
+        if (loadSpec.rate <= 0) {
+            throw new IllegalArgumentException("load needs a {rate, OpsPerSec} > 0");
+        }
+
+        if (loadSpec.keyGenerator == null) {
+            loadSpec.keyGenerator = KeyGenerator.from(new OtpErlangTuple(new OtpErlangObject[] {
+                    new OtpErlangAtom("uniform_int"), new OtpErlangLong(loadSpec.keys) }));
+        }
+        if (loadSpec.valueGenerator == null) {
+            loadSpec.valueGenerator = ValueGenerator.from(new OtpErlangTuple(new OtpErlangObject[] {
+                    new OtpErlangAtom("fixed_bin"), new OtpErlangLong(loadSpec.valueSize) }));
+        }
+        return loadSpec;
+    }
+
+    /**
+     * @param mix
+     *            <code>[{Op, Weight}]</code>, single key ops only
+     */
+    private void mix(final OtpErlangList mix) {
+        ops = new Op[mix.arity()];
+        weights = new int[mix.arity()];
+        totalWeight = 0;
+
+        for (int i = 0; i < ops.length; i++) {
+            final OtpErlangTuple entry = (OtpErlangTuple) mix.elementAt(i);
+            try {
+                ops[i] = Op.fromString(((OtpErlangAtom) entry.elementAt(0)).atomValue());
+            } catch (UnsupportedOperationException e) {
+                throw new IllegalArgumentException("unknown op " + entry.elementAt(0));
+            }
+            weights[i] = Math.max(0, intValue(entry.elementAt(1)));
+            totalWeight += weights[i];
+
+            if (ops[i] == Op.MGET || ops[i] == Op.MPUT) {
+                throw new IllegalArgumentException(ops[i].getName() + " can't be generated");
+            }
+        }
+
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("mix " + mix + " has no weight");
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return String.format("LoadSpec [rate=%s, durationMs=%s, concurrency=%s, keys=%s, values=%s]", rate,
+                             durationMs, concurrency, keyGenerator, valueGenerator);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.lang.reflect.Field;
+
+import com.ericsson.otp.erlang.GenericQueue;
+import com.ericsson.otp.erlang.OtpMbox;
+
+/**
+ * Jinterface doesn't expose how many messages are waiting in an
+ * {@link OtpMbox}, or say when one arrives, but the mbox's queue is a public
+ * {@link GenericQueue}, so get at it (and swap it) reflectively.
+ * 
+ * @author russell
+ * 
+ */
+public final class MailboxProbe {
+
+    private static final Field QUEUE = queueField();
+
+    private MailboxProbe() {}
+
+    private static Field queueField() {
+        try {
+            Field f = OtpMbox.class.getDeclaredField("queue");
+            f.setAccessible(true);
+            return f;
+        } catch (Exception e) {
+            System.out.println("mailbox depth is not available :: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if {@link #depth(OtpMbox)} works with this jinterface
+     */
+    public static boolean isAvailable() {
+        return QUEUE != null;
+    }
+
+    /**
+     * @param mbox
+     * @return the number of messages waiting in <code>mbox</code>, or -1 if
+     *         that can't be known
+     */
+    public static int depth(OtpMbox mbox) {
+        if (QUEUE == null) {
+            return -1;
+        }
+        try {
+            return ((GenericQueue) QUEUE.get(mbox)).getCount();
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Have <code>listener</code> run each time a message is delivered to
+     * <code>mbox</code>. It runs on the thread delivering the message, so it
+     * mustn't block. Call it before the mbox's pid is handed out, anything
+     * already in the mailbox is dropped.
+     * 
+     * @param mbox
+     * @param listener
+     * @return false if the mbox's queue can't be replaced
+     */
+    public static boolean onDelivery(OtpMbox mbox, final Runnable listener) {
+        if (QUEUE == null) {
+            return false;
+        }
+        try {
+            final GenericQueue queue = new GenericQueue() {
+                @Override public void put(Object o) {
+                    super.put(o);
+                    listener.run();
+                }
+            };
+            QUEUE.set(mbox, queue);
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.basho.riak.client.IRiakObject;
+import com.basho.riak.client.bucket.BucketProperties;
+import com.basho.riak.client.builders.BucketPropertiesBuilder;
+import com.basho.riak.client.builders.RiakObjectBuilder;
+import com.basho.riak.client.cap.VClock;
+import com.basho.riak.client.query.MapReduceResult;
+import com.basho.riak.client.query.NodeStats;
+import com.basho.riak.client.query.WalkResult;
+import com.basho.riak.client.raw.DeleteMeta;
+import com.basho.riak.client.raw.FetchMeta;
+import com.basho.riak.client.raw.RawClient;
+import com.basho.riak.client.raw.RiakResponse;
+import com.basho.riak.client.raw.StoreMeta;
+import com.basho.riak.client.raw.Transport;
+import com.basho.riak.client.raw.query.LinkWalkSpec;
+import com.basho.riak.client.raw.query.MapReduceSpec;
+import com.basho.riak.client.raw.query.indexes.IndexQuery;
+
+/**
+ * A {@link RawClient} over a {@link MemoryStore}, no network at all. Supports
+ * the key/value operations {@link ClientShim} uses and listing buckets and
+ * keys. Buckets have fixed properties, there are no indexes and no stats, and
+ * link walking and map/reduce are unsupported.
+ * 
+ * @author russell
+ * 
+ */
+public class MemoryClient implements RawClient {
+
+    private static final Random RANDOM = new Random();
+
+    private final MemoryStore store;
+    private byte[] clientId;
+
+    /**
+     * @param store
+     */
+    public MemoryClient(MemoryStore store) {
+        this.store = store;
+    }
+
+    public RiakResponse head(String bucket, String key, FetchMeta fetchMeta) throws IOException {
+        return fetch(bucket, key);
+    }
+
+    public RiakResponse fetch(String bucket, String key) throws IOException {
+        final MemoryStore.Entry entry = store.get(bucket, key);
+
+        if (entry == null) {
+            return RiakResponse.empty();
+        }
+        return response(bucket, key, entry);
+    }
+
+    public RiakResponse fetch(String bucket, String key, int readQuorum) throws IOException {
+        return fetch(bucket, key);
+    }
+
+    public RiakResponse fetch(String bucket, String key, FetchMeta fetchMeta) throws IOException {
+        return fetch(bucket, key);
+    }
+
+    public RiakResponse store(IRiakObject object, StoreMeta storeMeta) throws IOException {
+        final VClock vclock = object.getVClock();
+        final MemoryStore.Entry entry = store.put(object.getBucket(), object.getKey(), object.getValue(),
+                                                  vclock == null ? null : vclock.getBytes());
+
+        if (wantsResponse(storeMeta)) {
+            return response(object.getBucket(), object.getKey(), entry);
+        }
+        return RiakResponse.empty();
+    }
+
+    private static boolean wantsResponse(StoreMeta storeMeta) {
+        if (storeMeta == null) {
+            return false;
+        }
+        return (storeMeta.hasReturnBody() && storeMeta.getReturnBody())
+                || (storeMeta.hasReturnHead() && storeMeta.getReturnHead());
+    }
+
+    public void store(IRiakObject object) throws IOException {
+        store(object, null);
+    }
+
+    public void delete(String bucket, String key) throws IOException {
+        store.delete(bucket, key);
+    }
+
+    public void delete(String bucket, String key, int deleteQuorum) throws IOException {
+        delete(bucket, key);
+    }
+
+    public void delete(String bucket, String key, DeleteMeta deleteMeta) throws IOException {
+        delete(bucket, key);
+    }
+
+    private static RiakResponse response(String bucket, String key, MemoryStore.Entry entry) {
+        final byte[] vclock = entry.getVclock();
+        final IRiakObject o = RiakObjectBuilder.newBuilder(bucket, key).withValue(entry.getValue())
+                .withVClock(vclock).build();
+        return new RiakResponse(vclock, new IRiakObject[] { o });
+    }
+
+    public Set<String> listBuckets() throws IOException {
+        return store.buckets();
+    }
+
+    public BucketProperties fetchBucket(String bucketName) throws IOException {
+        // what the store does, whatever was asked for
+        return new BucketPropertiesBuilder().allowSiblings(false).build();
+    }
+
+    public void updateBucket(String name, BucketProperties bucketProperties) throws IOException {
+        // nothing to update, see fetchBucket
+    }
+
+    public Iterable<String> listKeys(String bucketName) throws IOException {
+        return store.keys(bucketName);
+    }
+
+    public WalkResult linkWalk(LinkWalkSpec linkWalkSpec) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    public MapReduceResult mapReduce(MapReduceSpec spec) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] generateAndSetClientId() throws IOException {
+        final byte[] id = new byte[4];
+        RANDOM.nextBytes(id);
+        setClientId(id);
+        return id;
+    }
+
+    public void setClientId(byte[] clientId) throws IOException {
+        this.clientId = clientId;
+    }
+
+    public byte[] getClientId() throws IOException {
+        return clientId;
+    }
+
+    public void ping() throws IOException {}
+
+    public List<String> fetchIndex(IndexQuery indexQuery) throws IOException {
+        // nothing is indexed
+        return Collections.emptyList();
+    }
+
+    public Transport getTransport() {
+        // there is no memory transport in the riak client
+        return Transport.PB;
+    }
+
+    public void shutdown() {}
+
+    public NodeStats stats() throws IOException {
+        return new NodeStats();
+    }
+}
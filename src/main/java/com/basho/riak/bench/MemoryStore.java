@@ -0,0 +1,305 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in process, sharded key/value store with vclocks, standing in for a Riak
+ * cluster. Each shard is an access ordered map under its own lock, evicting
+ * least recently used entries once the shard is over its share of the key or
+ * byte limit.
+ * <p>
+ * A vclock here is just an 8 byte version counter. Storing with the current
+ * vclock (or with none, for a new key) bumps the version; storing with a stale
+ * or missing vclock over an existing key still wins (last write wins, like
+ * <code>allow_mult=false</code>) but is counted as a conflict.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class MemoryStore {
+
+    /**
+     * A stored value and its version
+     */
+    public static final class Entry {
+        private final byte[] value;
+        private final long version;
+
+        private Entry(byte[] value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+
+        /**
+         * @return the value (not a copy, don't change it)
+         */
+        public byte[] getValue() {
+            return value;
+        }
+
+        /**
+         * @return the vclock for this version
+         */
+        public byte[] getVclock() {
+            return vclock(version);
+        }
+    }
+
+    private final Shard[] shards;
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    /**
+     * @param shards
+     *            number of independently locked shards, no more than
+     *            <code>maxKeys</code> if there's a limit
+     * @param maxKeys
+     *            total key limit (split evenly across shards), 0 for no limit
+     * @param maxBytes
+     *            total value bytes limit (split evenly across shards), 0 for no
+     *            limit
+     */
+    public MemoryStore(int shards, long maxKeys, long maxBytes) {
+        // a shard holds at least one key, so more shards than keys would
+        // hold more than maxKeys
+        this.shards = new Shard[(int) Math.max(1, maxKeys == 0 ? shards : Math.min(shards, maxKeys))];
+
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard(share(maxKeys, i), share(maxBytes, i));
+        }
+    }
+
+    /**
+     * @param limit
+     *            a total limit, 0 for none
+     * @param shard
+     * @return <code>shard</code>'s part of <code>limit</code>, the remainder
+     *         goes one each to the first shards
+     */
+    private long share(long limit, int shard) {
+        if (limit == 0) {
+            return 0;
+        }
+        return Math.max(1, limit / shards.length + (shard < limit % shards.length ? 1 : 0));
+    }
+
+    /**
+     * @param bucket
+     * @param key
+     * @return the entry or null if not found
+     */
+    public Entry get(String bucket, String key) {
+        final String k = storeKey(bucket, key);
+        final Shard shard = shardFor(k);
+
+        synchronized (shard) {
+            return shard.map.get(k);
+        }
+    }
+
+    /**
+     * @param bucket
+     * @param key
+     * @param value
+     *            kept as is, don't change it after
+     * @param vclock
+     *            the vclock the value was derived from, may be null
+     * @return the stored entry
+     */
+    public Entry put(String bucket, String key, byte[] value, byte[] vclock) {
+        final String k = storeKey(bucket, key);
+        final Shard shard = shardFor(k);
+
+        synchronized (shard) {
+            final Entry current = shard.map.get(k);
+            long version = 1;
+
+            if (current != null) {
+                if (vclock == null || version(vclock) != current.version) {
+                    conflicts.incrementAndGet();
+                }
+                version = current.version + 1;
+                shard.bytes -= current.value.length;
+            }
+
+            final Entry entry = new Entry(value, version);
+            shard.map.put(k, entry);
+            shard.bytes += value.length;
+            shard.evict();
+            return entry;
+        }
+    }
+
+    /**
+     * @param bucket
+     * @param key
+     */
+    public void delete(String bucket, String key) {
+        final String k = storeKey(bucket, key);
+        final Shard shard = shardFor(k);
+
+        synchronized (shard) {
+            final Entry removed = shard.map.remove(k);
+
+            if (removed != null) {
+                shard.bytes -= removed.value.length;
+            }
+        }
+    }
+
+    /**
+     * @return every bucket with a key in it, scans the whole store
+     */
+    public Set<String> buckets() {
+        final Set<String> buckets = new HashSet<String>();
+
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (String k : shard.map.keySet()) {
+                    buckets.add(k.substring(0, k.indexOf('\u0000')));
+                }
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * @param bucket
+     * @return the keys in <code>bucket</code>, scans the whole store
+     */
+    public List<String> keys(String bucket) {
+        final String prefix = bucket + '\u0000';
+        final List<String> keys = new ArrayList<String>();
+
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (String k : shard.map.keySet()) {
+                    if (k.startsWith(prefix)) {
+                        keys.add(k.substring(prefix.length()));
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the number of keys stored
+     */
+    public long getKeys() {
+        long keys = 0;
+
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                keys += shard.map.size();
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the number of value bytes stored
+     */
+    public long getBytes() {
+        long bytes = 0;
+
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of entries evicted to stay under the limits
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of stores with a stale or missing vclock
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    private Shard shardFor(String k) {
+        return shards[(k.hashCode() & 0x7fffffff) % shards.length];
+    }
+
+    private static String storeKey(String bucket, String key) {
+        return new StringBuilder(bucket.length() + key.length() + 1).append(bucket).append('\u0000').append(key)
+                .toString();
+    }
+
+    private static byte[] vclock(long version) {
+        final byte[] vclock = new byte[8];
+
+        for (int i = 7; i >= 0; i--) {
+            vclock[i] = (byte) version;
+            version >>>= 8;
+        }
+        return vclock;
+    }
+
+    private static long version(byte[] vclock) {
+        if (vclock.length != 8) {
+            return -1;
+        }
+        long version = 0;
+
+        for (byte b : vclock) {
+            version = (version << 8) | (b & 0xff);
+        }
+        return version;
+    }
+
+    private final class Shard {
+        private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+        private final long maxKeys;
+        private final long maxBytes;
+        private long bytes;
+
+        private Shard(long maxKeys, long maxBytes) {
+            this.maxKeys = maxKeys;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Drop least recently used entries until under the limits, caller
+         * holds the lock
+         */
+        private void evict() {
+            final Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+
+            while (it.hasNext() && ((maxKeys > 0 && map.size() > maxKeys) || (maxBytes > 0 && bytes > maxBytes))) {
+                bytes -= it.next().getValue().value.length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+}
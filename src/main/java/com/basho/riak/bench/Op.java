@@ -13,6 +13,9 @@
  */
 package com.basho.riak.bench;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * The operations the bench driver exposes to erlang
  * 
@@ -21,21 +24,45 @@ package com.basho.riak.bench;
  */
 public enum Op {
 
-    GET("get"), PUT("put"), DELETE("delete"), CREATE_UPDATE("create_update"), UPDATE("update");
+    GET("get", false), PUT("put", true), DELETE("delete", false), CREATE_UPDATE("create_update", true),
+    UPDATE("update", true), MGET("mget", false), MPUT("mput", true);
+
+    private static final Map<String, Op> BY_NAME = new HashMap<String, Op>();
+
+    static {
+        for (Op op : Op.values()) {
+            BY_NAME.put(op.name, op);
+        }
+    }
 
     private final String name;
+    private final boolean write;
 
-    private Op(String name) {
+    private Op(String name, boolean write) {
         this.name = name;
+        this.write = write;
+    }
+
+    /**
+     * @return the erlang name of this op
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if this op carries a value to store
+     */
+    public boolean isWrite() {
+        return write;
     }
 
     public static Op fromString(String name) {
-        for (Op op : Op.values()) {
-            if (op.name.equals(name)) {
-                return op;
-            }
-        }
+        final Op op = BY_NAME.get(name);
 
-        throw new UnsupportedOperationException(name);
+        if (op == null) {
+            throw new UnsupportedOperationException(name);
+        }
+        return op;
     }
 }
@@ -14,7 +14,9 @@
 package com.basho.riak.bench;
 
 import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangLong;
 import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
 import com.ericsson.otp.erlang.OtpErlangTuple;
 
 /**
@@ -43,4 +45,26 @@ public class OtpMessageHelper {
             return new OtpErlangTuple(contents);
         }
     }
+
+    /**
+     * Create a single proplist entry
+     * 
+     * @param key
+     * @param value
+     * @return <code>{key, value}</code>
+     */
+    public static OtpErlangTuple prop(String key, long value) {
+        return new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom(key), new OtpErlangLong(value) });
+    }
+
+    /**
+     * Create an error reply with a reason of any length (an atom can't be
+     * more than 255 characters)
+     * 
+     * @param reason
+     * @return <code>{error, "reason"}</code>
+     */
+    public static OtpErlangTuple error(String reason) {
+        return new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("error"), new OtpErlangString(reason) });
+    }
 }
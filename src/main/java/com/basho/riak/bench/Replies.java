@@ -0,0 +1,78 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static com.basho.riak.bench.OtpMessageHelper.reply;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * The constant replies a {@link ClientShim} sends, pre-encoded. Each shim also
+ * has the whole <code>{ShimPid, Reply}</code> message pre-encoded for every
+ * constant reply, so the common case sends bytes that were built once.
+ * 
+ * @author russell
+ * 
+ */
+public class Replies {
+
+    public static final EncodedTerm OK = new EncodedTerm(reply("ok"));
+    public static final EncodedTerm OK_FOUND = new EncodedTerm(reply("ok", "found"));
+    public static final EncodedTerm OK_NOTFOUND = new EncodedTerm(reply("ok", "notfound"));
+    public static final EncodedTerm ERROR_NOTFOUND = new EncodedTerm(reply("error", "notfound"));
+    public static final EncodedTerm ERROR_OVERLOADED = new EncodedTerm(reply("error", "overloaded"));
+    public static final EncodedTerm ERROR_TIMEOUT = new EncodedTerm(reply("error", "timeout"));
+
+    private static final EncodedTerm[] CONSTANTS = { OK, OK_FOUND, OK_NOTFOUND, ERROR_NOTFOUND, ERROR_OVERLOADED,
+                                                    ERROR_TIMEOUT };
+
+    private final OtpErlangPid self;
+    private final Map<OtpErlangObject, EncodedTerm> messages = new IdentityHashMap<OtpErlangObject, EncodedTerm>();
+
+    /**
+     * @param self
+     *            the pid of the shim's mbox
+     */
+    public Replies(OtpErlangPid self) {
+        this.self = self;
+
+        for (EncodedTerm reply : CONSTANTS) {
+            messages.put(reply, new EncodedTerm(new OtpErlangTuple(new OtpErlangObject[] { self, reply })));
+        }
+    }
+
+    /**
+     * @param ref
+     *            the request's reference, may be null
+     * @param reply
+     * @return <code>{ShimPid, Reply}</code> or, if <code>ref</code> is not
+     *         null, <code>{ShimPid, Ref, Reply}</code>
+     */
+    public OtpErlangObject message(OtpErlangObject ref, OtpErlangObject reply) {
+        if (ref == null) {
+            final EncodedTerm message = messages.get(reply);
+
+            if (message != null) {
+                return message;
+            }
+            return new OtpErlangTuple(new OtpErlangObject[] { self, reply });
+        }
+        return new OtpErlangTuple(new OtpErlangObject[] { self, ref, reply });
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangDouble;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangRangeException;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * The optional fifth element of a factory "create" tuple, a proplist of
+ * per-shim settings. Unknown keys are ignored so basho_bench can be ahead of
+ * the shim.
+ * 
+ * @author russell
+ * 
+ */
+public class ShimOptions {
+
+    private int pipeline = 1;
+    private int poolSize = 0;
+    private long memoryMaxKeys = 0;
+    private long memoryMaxBytes = 0;
+    private int memoryShards = 64;
+    private int async = 0;
+    private int asyncConnections = 8;
+    private long cacheSize = 0;
+    private int cacheShards = 16;
+    private boolean cacheValues = false;
+    private int chainUpdates = 0;
+    private KeyGenerator keyGenerator;
+    private ValueGenerator valueGenerator;
+    private Balance balance = Balance.ROUND_ROBIN;
+    private long nodeRetryMs = 1000;
+    private double hedge = 0;
+    private long hedgeMinMs = 1;
+    private LimitAlgorithm limit;
+    private int limitInitial = 20;
+    private int limitMax = 1000;
+    private long limitWaitMs = -1;
+    private int highWater = 0;
+    private long timeoutMs = 0;
+    private KeyEncoding keyEncoding = KeyEncoding.BASE64;
+    private int spareClients = 0;
+
+    /**
+     * @return the maximum number of requests a shim will have outstanding
+     *         against Riak at once, 1 means one at a time (the default)
+     */
+    public int getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return true if the shim should run requests concurrently
+     */
+    public boolean isPipelined() {
+        return pipeline > 1;
+    }
+
+    /**
+     * @return the size of the connection pool shared by all shims for the
+     *         same host/port/transport, 0 (the default) means the shim has
+     *         its own connection(s)
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return true if the shim should borrow connections from a shared pool
+     */
+    public boolean isPooled() {
+        return poolSize > 0;
+    }
+
+    /**
+     * @return the maximum number of requests a shim will have outstanding on
+     *         the non-blocking {@link AsyncPbClient}, 0 (the default) means
+     *         the shim makes blocking calls
+     */
+    public int getAsync() {
+        return async;
+    }
+
+    /**
+     * @return true if the shim should use the non-blocking
+     *         {@link AsyncPbClient}
+     */
+    public boolean isAsync() {
+        return async > 0;
+    }
+
+    /**
+     * @return the number of connections the {@link AsyncPbClient} shared by
+     *         all async shims for the same host/port opens
+     */
+    public int getAsyncConnections() {
+        return asyncConnections;
+    }
+
+    /**
+     * @return the entry limit of the {@link VClockCache} shared by all shims
+     *         for the same host/port, 0 (the default) for no cache
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @return the number of independently locked shards in the shared
+     *         {@link VClockCache}
+     */
+    public int getCacheShards() {
+        return cacheShards;
+    }
+
+    /**
+     * @return true if shims should use a shared {@link VClockCache}
+     */
+    public boolean isCached() {
+        return cacheSize > 0;
+    }
+
+    /**
+     * @return true if the {@link VClockCache} should keep values too, so a
+     *         GET can be answered from the cache
+     */
+    public boolean isCacheValues() {
+        return cacheValues;
+    }
+
+    /**
+     * @return the number of keys a shim remembers the last vclock of, so its
+     *         next update of a key can store without fetching, 0 (the default)
+     *         for none
+     */
+    public int getChainUpdates() {
+        return chainUpdates;
+    }
+
+    /**
+     * @return true if the shim should chain updates off its own stores
+     */
+    public boolean isChained() {
+        return chainUpdates > 0;
+    }
+
+    /**
+     * @return the generator for keys left out of messages, null (the default)
+     *         if messages must have keys
+     */
+    public KeyGenerator getKeyGenerator() {
+        return keyGenerator;
+    }
+
+    /**
+     * @return the generator for values left out of write messages, null (the
+     *         default) if messages must have values
+     */
+    public ValueGenerator getValueGenerator() {
+        return valueGenerator;
+    }
+
+    /**
+     * @return how a shim given several Riak nodes picks one for each request,
+     *         {@link Balance#ROUND_ROBIN} by default
+     */
+    public Balance getBalance() {
+        return balance;
+    }
+
+    /**
+     * @return how long a node that failed a request is left out of rotation
+     *         before it's tried again
+     */
+    public long getNodeRetryMs() {
+        return nodeRetryMs;
+    }
+
+    /**
+     * @return the percentile of a node's fetch latency after which a fetch is
+     *         sent to a second node as well, 0 (the default) for never
+     */
+    public double getHedge() {
+        return hedge;
+    }
+
+    /**
+     * @return the least time a fetch is given before it's hedged
+     */
+    public long getHedgeMinMs() {
+        return hedgeMinMs;
+    }
+
+    /**
+     * @return how the limit on requests in flight to each Riak node adapts,
+     *         null (the default) for no limit
+     */
+    public LimitAlgorithm getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the limit on requests in flight to a node before there are any
+     *         round trips to go on
+     */
+    public int getLimitInitial() {
+        return limitInitial;
+    }
+
+    /**
+     * @return the most the limit on requests in flight to a node can grow to
+     */
+    public int getLimitMax() {
+        return limitMax;
+    }
+
+    /**
+     * @return how long a request waits for a slot under the limit before the
+     *         shim replies <code>{error, overloaded}</code>, less than 0 (the
+     *         default) to wait as long as it takes
+     */
+    public long getLimitWaitMs() {
+        return limitWaitMs;
+    }
+
+    /**
+     * @return the number of queued plus in flight requests at which a shim
+     *         replies <code>{error, overloaded}</code> instead of running a
+     *         request, 0 (the default) for no limit
+     */
+    public int getHighWater() {
+        return highWater;
+    }
+
+    /**
+     * @return the timeout of requests that carry no <code>{timeout, Ms}</code>
+     *         or <code>{deadline, UnixMs}</code> of their own, 0 (the default)
+     *         for none
+     */
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * @return how buckets and keys are sent to Riak, {@link KeyEncoding#BASE64}
+     *         by default
+     */
+    public KeyEncoding getKeyEncoding() {
+        return keyEncoding;
+    }
+
+    /**
+     * @return how many connected clients the factory keeps ready for new
+     *         shims to the same nodes, 0 (the default) for none
+     */
+    public int getSpareClients() {
+        return spareClients;
+    }
+
+    /**
+     * @return the key limit of a {@link Transport#MEMORY} store, 0 (the
+     *         default) for no limit
+     */
+    public long getMemoryMaxKeys() {
+        return memoryMaxKeys;
+    }
+
+    /**
+     * @return the value bytes limit of a {@link Transport#MEMORY} store, 0
+     *         (the default) for no limit
+     */
+    public long getMemoryMaxBytes() {
+        return memoryMaxBytes;
+    }
+
+    /**
+     * @return the number of shards in a {@link Transport#MEMORY} store
+     */
+    public int getMemoryShards() {
+        return memoryShards;
+    }
+
+    /**
+     * @return the default options
+     */
+    public static ShimOptions defaults() {
+        return new ShimOptions();
+    }
+
+    /**
+     * Parse a proplist like <code>[{pipeline, 8}]</code>
+     * 
+     * @param options
+     * @return the {@link ShimOptions}
+     */
+    public static ShimOptions from(final OtpErlangList options) {
+        final ShimOptions shimOptions = new ShimOptions();
+
+        for (OtpErlangObject option : options) {
+            if (!(option instanceof OtpErlangTuple)) {
+                throw new IllegalArgumentException(option.toString() + " is not a Tuple");
+            }
+
+            OtpErlangTuple optionTuple = (OtpErlangTuple) option;
+
+            if (optionTuple.arity() != 2) {
+                throw new IllegalArgumentException(optionTuple.toString() + " is not a 2 tuple");
+            }
+
+            final String name = ((OtpErlangAtom) optionTuple.elementAt(0)).atomValue();
+            final OtpErlangObject value = optionTuple.elementAt(1);
+
+            if ("pipeline".equals(name)) {
+                shimOptions.pipeline = Math.max(1, intValue(value));
+            } else if ("pool_size".equals(name)) {
+                shimOptions.poolSize = Math.max(0, intValue(value));
+            } else if ("memory_max_keys".equals(name)) {
+                shimOptions.memoryMaxKeys = Math.max(0, longValue(value));
+            } else if ("memory_max_bytes".equals(name)) {
+                shimOptions.memoryMaxBytes = Math.max(0, longValue(value));
+            } else if ("memory_shards".equals(name)) {
+                shimOptions.memoryShards = Math.max(1, intValue(value));
+            } else if ("async".equals(name)) {
+                shimOptions.async = Math.max(0, intValue(value));
+            } else if ("async_connections".equals(name)) {
+                shimOptions.asyncConnections = Math.max(1, intValue(value));
+            } else if ("cache_size".equals(name)) {
+                shimOptions.cacheSize = Math.max(0, longValue(value));
+            } else if ("cache_shards".equals(name)) {
+                shimOptions.cacheShards = Math.max(1, intValue(value));
+            } else if ("cache_values".equals(name)) {
+                shimOptions.cacheValues = booleanValue(value);
+            } else if ("chain_updates".equals(name)) {
+                shimOptions.chainUpdates = Math.max(0, intValue(value));
+            } else if ("balance".equals(name)) {
+                shimOptions.balance = Balance.fromAtom((OtpErlangAtom) value);
+            } else if ("node_retry_ms".equals(name)) {
+                shimOptions.nodeRetryMs = Math.max(0, longValue(value));
+            } else if ("hedge".equals(name)) {
+                shimOptions.hedge = Math.max(0, Math.min(100, doubleValue(value)));
+            } else if ("hedge_min_ms".equals(name)) {
+                shimOptions.hedgeMinMs = Math.max(0, longValue(value));
+            } else if ("limit".equals(name)) {
+                shimOptions.limit = LimitAlgorithm.fromAtom((OtpErlangAtom) value);
+            } else if ("limit_initial".equals(name)) {
+                shimOptions.limitInitial = Math.max(1, intValue(value));
+            } else if ("limit_max".equals(name)) {
+                shimOptions.limitMax = Math.max(1, intValue(value));
+            } else if ("limit_wait_ms".equals(name)) {
+                shimOptions.limitWaitMs = value instanceof OtpErlangAtom ? -1 : Math.max(0, longValue(value));
+            } else if ("high_water".equals(name)) {
+                shimOptions.highWater = Math.max(0, intValue(value));
+            } else if ("spare_clients".equals(name)) {
+                shimOptions.spareClients = Math.max(0, intValue(value));
+            } else if ("timeout".equals(name)) {
+                shimOptions.timeoutMs = Math.max(0, longValue(value));
+            } else if ("key_encoding".equals(name)) {
+                shimOptions.keyEncoding = KeyEncoding.fromAtom((OtpErlangAtom) value);
+            } else if ("key_generator".equals(name)) {
+                shimOptions.keyGenerator = KeyGenerator.from(value);
+            } else if ("value_generator".equals(name)) {
+                shimOptions.valueGenerator = ValueGenerator.from(value);
+            }
+        }
+
+        return shimOptions;
+    }
+
+    /**
+     * @param value
+     * @return the int value of the erlang integer <code>value</code>
+     */
+    static int intValue(OtpErlangObject value) {
+        try {
+            return ((OtpErlangLong) value).intValue();
+        } catch (OtpErlangRangeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @param value
+     * @return the long value of the erlang integer <code>value</code>
+     */
+    static long longValue(OtpErlangObject value) {
+        return ((OtpErlangLong) value).longValue();
+    }
+
+    /**
+     * @param value
+     * @return the value of the erlang float or integer <code>value</code>
+     */
+    static double doubleValue(OtpErlangObject value) {
+        if (value instanceof OtpErlangDouble) {
+            return ((OtpErlangDouble) value).doubleValue();
+        }
+        return longValue(value);
+    }
+
+    /**
+     * @param value
+     * @return the value of the erlang boolean <code>value</code>
+     */
+    static boolean booleanValue(OtpErlangObject value) {
+        return ((OtpErlangAtom) value).booleanValue();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return String.format("ShimOptions [pipeline=%s, poolSize=%s, async=%s, cacheSize=%s]", pipeline, poolSize,
+                             async, cacheSize);
+    }
+}
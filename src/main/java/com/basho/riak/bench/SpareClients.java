@@ -0,0 +1,158 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.basho.riak.client.raw.RawClient;
+
+/**
+ * Up to <code>target</code> connected clients (client id and all) for one
+ * {@link ClientConfig}, made in the background so a new shim can take one
+ * instead of connecting while basho_bench waits. Each one taken is
+ * replaced. If there's none ready the shim connects for itself.
+ * 
+ * @author russell
+ * 
+ */
+public class SpareClients {
+
+    private static final ExecutorService CONNECTOR = Executors.newFixedThreadPool(4, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "spare-connect");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ClientConfig config;
+    private final int target;
+    private final BlockingQueue<RawClient> ready = new LinkedBlockingQueue<RawClient>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    // ready plus connecting, guarded by this
+    private int filling = 0;
+
+    /**
+     * Starts filling straight away
+     * 
+     * @param config
+     *            for each client
+     * @param target
+     *            how many to keep ready
+     */
+    public SpareClients(ClientConfig config, int target) {
+        this.config = config;
+        this.target = target;
+        refill();
+    }
+
+    /**
+     * @return a ready client if there is one, otherwise a new one
+     * @throws IOException
+     *             if there was none ready and connecting failed
+     */
+    public RawClient take() throws IOException {
+        final RawClient client = ready.poll();
+
+        if (client == null) {
+            misses.incrementAndGet();
+            // replace any spares whose connect failed
+            refill();
+            return connect();
+        }
+        synchronized (this) {
+            filling--;
+        }
+        hits.incrementAndGet();
+        refill();
+        return client;
+    }
+
+    /**
+     * Connect in the background until there are <code>target</code> ready
+     * or on the way
+     */
+    private void refill() {
+        final int missing;
+
+        synchronized (this) {
+            missing = target - filling;
+            filling = target;
+        }
+
+        for (int i = 0; i < missing; i++) {
+            CONNECTOR.execute(new Runnable() {
+                public void run() {
+                    boolean ok = false;
+
+                    try {
+                        ready.offer(connect());
+                        ok = true;
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        if (!ok) {
+                            // leave it for the next take to try again
+                            synchronized (SpareClients.this) {
+                                filling--;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private RawClient connect() throws IOException {
+        final RawClient client = ClientFactory.newClient(config);
+        client.generateAndSetClientId();
+        return client;
+    }
+
+    /**
+     * @return the number of clients ready to take
+     */
+    public int getReady() {
+        return ready.size();
+    }
+
+    /**
+     * @return the number of takes that got a ready client
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of takes that had to connect
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of background connects that failed
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import com.basho.riak.client.builders.RiakObjectBuilder;
+import com.basho.riak.client.raw.RawClient;
+import com.basho.riak.client.raw.RiakResponse;
+import com.basho.riak.client.raw.StoreMeta;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * The single key {@link Op}s, as blocking calls on a {@link RawClient}. Used by
+ * {@link ClientShim} and {@link LoadGenerator}, safe for concurrent use.
+ * 
+ * @author russell
+ * 
+ */
+class SyncOps {
+
+    private static final OtpErlangObject OK = Replies.OK;
+    private static final OtpErlangObject OK_FOUND = Replies.OK_FOUND;
+    private static final OtpErlangObject OK_NOTFOUND = Replies.OK_NOTFOUND;
+    private static final OtpErlangObject ERROR_NOTFOUND = Replies.ERROR_NOTFOUND;
+    private static final OtpErlangObject ERROR_TIMEOUT = Replies.ERROR_TIMEOUT;
+
+    private final VClockCache cache;
+    private final String host;
+    private volatile StoreMeta lastStoreMeta;
+
+    /**
+     * @param cache
+     *            may be null
+     * @param host
+     *            for error messages
+     */
+    SyncOps(VClockCache cache, String host) {
+        this.cache = cache;
+        this.host = host;
+    }
+
+    /**
+     * Run a single key <code>op</code> against <code>client</code>, unless
+     * the args' deadline has already passed
+     * 
+     * @param op
+     * @param args
+     * @param client
+     * @return the reply for basho_bench
+     */
+    OtpErlangObject perform(Op op, Args args, RawClient client) {
+        OtpErlangObject reply = null;
+
+        if (args.isExpired()) {
+            return ERROR_TIMEOUT;
+        }
+
+        switch (op) {
+        case GET:
+            try {
+                if (cache != null && cache.isKeepingValues() && cache.get(args.getBucket(), args.getKey()) != null) {
+                    reply = OK_FOUND;
+                    break;
+                }
+
+                RiakResponse response = client.fetch(args.getBucket(), args.getKey(), args.getR());
+
+                if (response == null || (!response.hasValue() && response.getVclock() == null)) {
+                    // send not found
+                    reply = OK_NOTFOUND;
+                } else {
+                    // send found message back
+                    reply = OK_FOUND;
+                    remember(args, response, response.hasValue() ? response.getRiakObjects()[0].getValue() : null);
+                }
+            } catch (Exception e) {
+                // send error message
+                reply = errorReply(e, args);
+            }
+            break;
+        case PUT:
+            try {
+                remember(args, client.store(newBuilder(args).build(), storeMeta(args)), args.getValue());
+                reply = OK;
+            } catch (Exception e) {
+                reply = errorReply(e, args);
+            }
+            break;
+        case DELETE:
+            try {
+                client.delete(args.getBucket(), args.getKey(), args.getR());
+                if (cache != null) {
+                    cache.invalidate(args.getBucket(), args.getKey());
+                }
+                reply = OK;
+            } catch (IOException e) {
+                reply = errorReply(e, args);
+
+            }
+            break;
+        case CREATE_UPDATE:
+            try {
+                if (storeWithCachedVclock(args, client)) {
+                    reply = OK;
+                    break;
+                }
+
+                RiakResponse response = client.fetch(args.getBucket(), args.getKey(), args.getR());
+
+                if (args.isExpired()) {
+                    reply = ERROR_TIMEOUT;
+                    break;
+                }
+
+                RiakObjectBuilder rob = newBuilder(args);
+
+                if (response != null && (response.hasValue() && response.getVclock() != null)) {
+                    rob.withVClock(response.getVclock());
+                }
+
+                remember(args, client.store(rob.build(), storeMeta(args)), args.getValue());
+                reply = OK;
+            } catch (Exception e) {
+                reply = errorReply(e, args);
+            }
+
+            break;
+        case UPDATE:
+            try {
+                if (storeWithCachedVclock(args, client)) {
+                    reply = OK;
+                    break;
+                }
+
+                RiakResponse response = client.fetch(args.getBucket(), args.getKey(), args.getR());
+                if (response == null || (!response.hasValue() && response.getVclock() == null)) {
+                    reply = ERROR_NOTFOUND;
+                } else if (args.isExpired()) {
+                    reply = ERROR_TIMEOUT;
+                } else {
+                    remember(args, client.store(newBuilder(args).withVClock(response.getVclock()).build(),
+                                                storeMeta(args)), args.getValue());
+                    reply = OK;
+                }
+            } catch (Exception e) {
+                reply = errorReply(e, args);
+            }
+
+            break;
+        default:
+            throw new UnsupportedOperationException(op.name());
+        }
+        return reply;
+    }
+
+    /**
+     * Store <code>args</code> with the cached vclock for its key, skipping
+     * the fetch
+     * 
+     * @param args
+     * @param client
+     * @return false if there is no cache, no entry, or the store made
+     *         siblings (the cached vclock was stale), the caller should fetch
+     *         and store as usual
+     * @throws IOException
+     */
+    private boolean storeWithCachedVclock(Args args, RawClient client) throws IOException {
+        final VClockCache.Entry cached = cache == null ? null : cache.get(args.getBucket(), args.getKey());
+
+        if (cached == null) {
+            return false;
+        }
+        return remember(args, client.store(newBuilder(args).withVClock(cached.getVclock()).build(), storeMeta(args)),
+                        args.getValue());
+    }
+
+    /**
+     * Cache the vclock (and value) of a fetch or store response
+     * 
+     * @param args
+     * @param response
+     *            may be null
+     * @param value
+     *            the object's value, may be null
+     * @return false if the response has siblings
+     */
+    private boolean remember(Args args, RiakResponse response, byte[] value) {
+        if (cache == null) {
+            return true;
+        }
+
+        if (response != null && response.hasSiblings()) {
+            cache.conflict(args.getBucket(), args.getKey());
+            return false;
+        }
+
+        if (response == null || response.getVclock() == null) {
+            cache.invalidate(args.getBucket(), args.getKey());
+        } else {
+            cache.put(args.getBucket(), args.getKey(), response.getVclockBytes(), value);
+        }
+        return true;
+    }
+
+    /**
+     * @param args
+     * @return a builder for the bucket/key/value in <code>args</code>
+     */
+    private static RiakObjectBuilder newBuilder(Args args) {
+        return RiakObjectBuilder.newBuilder(args.getBucket(), args.getKey()).withValue(args.getValue());
+    }
+
+    /**
+     * {@link StoreMeta} is immutable and w/dw rarely change, so keep the last
+     * one. Asks for the new vclock back if there's a {@link VClockCache}.
+     * 
+     * @param args
+     * @return a {@link StoreMeta} for the w/dw in <code>args</code>
+     */
+    private StoreMeta storeMeta(Args args) {
+        StoreMeta meta = lastStoreMeta;
+
+        if (meta == null || meta.getW().getIntValue() != args.getW() || meta.getDw().getIntValue() != args.getDw()) {
+            meta = new StoreMeta(args.getW(), args.getDw(), null, false, cache != null, false, false);
+            lastStoreMeta = meta;
+        }
+        return meta;
+    }
+
+    /**
+     * @param e
+     * @param args
+     * @return <code>{error, Reason}</code> for a failed op on
+     *         <code>args</code>, <code>{error, timeout}</code> if it timed
+     *         out
+     */
+    OtpErlangObject errorReply(Exception e, Args args) {
+        if (e instanceof SocketTimeoutException) {
+            return ERROR_TIMEOUT;
+        }
+        if (e instanceof ConcurrencyLimit.LimitExceededException) {
+            return Replies.ERROR_OVERLOADED;
+        }
+        OtpErlangAtom error = new OtpErlangAtom("error");
+        String eString = e.toString() + " b : " + args.getBucket() + " k : " + args.getKey();
+        OtpErlangString reason = new OtpErlangString(eString);
+
+        System.out.println("sending error message for " + host + " :: " + eString);
+        return new OtpErlangTuple(new OtpErlangObject[] { error, reason });
+    }
+}
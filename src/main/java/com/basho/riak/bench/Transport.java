@@ -21,7 +21,11 @@ import com.ericsson.otp.erlang.OtpErlangAtom;
  */
 public enum Transport {
 
-    HTTP, PB;
+    HTTP, PB,
+    /**
+     * An in process {@link MemoryStore}, no Riak needed
+     */
+    MEMORY;
 
     /**
      * @param elementAt
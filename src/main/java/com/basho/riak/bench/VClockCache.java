@@ -0,0 +1,228 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded bucket/key to vclock (and, optionally, value) cache, shared by the
+ * shims on a node, modelling the client side caching of a real service. With
+ * a cached vclock an update can store straight away instead of fetching first.
+ * <p>
+ * Sharded like {@link MemoryStore}, each shard an access ordered map under its
+ * own lock evicting the least recently used entry once over its share of the
+ * limit.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class VClockCache {
+
+    /**
+     * A cached vclock and maybe the value that goes with it
+     */
+    public static final class Entry {
+        private final byte[] vclock;
+        private final byte[] value;
+
+        private Entry(byte[] vclock, byte[] value) {
+            this.vclock = vclock;
+            this.value = value;
+        }
+
+        /**
+         * @return the vclock
+         */
+        public byte[] getVclock() {
+            return vclock;
+        }
+
+        /**
+         * @return the value, null unless the cache keeps values
+         */
+        public byte[] getValue() {
+            return value;
+        }
+    }
+
+    private final Shard[] shards;
+    private final boolean keepValues;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    /**
+     * @param shards
+     *            number of independently locked shards, no more than
+     *            <code>maxEntries</code>
+     * @param maxEntries
+     *            total entry limit, split evenly across shards
+     * @param keepValues
+     *            cache values as well as vclocks
+     */
+    public VClockCache(int shards, long maxEntries, boolean keepValues) {
+        // a shard holds at least one entry, so more shards than entries
+        // would hold more than maxEntries
+        this.shards = new Shard[(int) Math.max(1, Math.min(shards, maxEntries))];
+        this.keepValues = keepValues;
+        final long share = maxEntries / this.shards.length;
+        final long remainder = maxEntries % this.shards.length;
+
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard(Math.max(1, share + (i < remainder ? 1 : 0)));
+        }
+    }
+
+    /**
+     * @param bucket
+     * @param key
+     * @return the entry, or null on a miss
+     */
+    public Entry get(String bucket, String key) {
+        final String k = cacheKey(bucket, key);
+        final Shard shard = shardFor(k);
+        Entry entry;
+
+        synchronized (shard) {
+            entry = shard.map.get(k);
+        }
+
+        (entry == null ? misses : hits).incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * @param bucket
+     * @param key
+     * @param vclock
+     * @param value
+     *            ignored unless the cache keeps values, kept as is
+     */
+    public void put(String bucket, String key, byte[] vclock, byte[] value) {
+        final String k = cacheKey(bucket, key);
+        final Shard shard = shardFor(k);
+        final Entry entry = new Entry(vclock, keepValues ? value : null);
+
+        synchronized (shard) {
+            shard.map.put(k, entry);
+        }
+    }
+
+    /**
+     * Drop the entry for <code>bucket/key</code>, if there is one
+     * 
+     * @param bucket
+     * @param key
+     */
+    public void invalidate(String bucket, String key) {
+        final String k = cacheKey(bucket, key);
+        final Shard shard = shardFor(k);
+
+        synchronized (shard) {
+            shard.map.remove(k);
+        }
+    }
+
+    /**
+     * A store with the cached vclock made siblings, the entry was stale, so
+     * drop it
+     * 
+     * @param bucket
+     * @param key
+     */
+    public void conflict(String bucket, String key) {
+        conflicts.incrementAndGet();
+        invalidate(bucket, key);
+    }
+
+    /**
+     * @return true if the cache keeps values as well as vclocks
+     */
+    public boolean isKeepingValues() {
+        return keepValues;
+    }
+
+    /**
+     * @return the number of entries cached
+     */
+    public long getEntries() {
+        long entries = 0;
+
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                entries += shard.map.size();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the number of lookups that found an entry
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that didn't
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries evicted to stay under the limit
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of cached vclocks found to be stale
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    private Shard shardFor(String k) {
+        return shards[(k.hashCode() & 0x7fffffff) % shards.length];
+    }
+
+    private static String cacheKey(String bucket, String key) {
+        return new StringBuilder(bucket.length() + key.length() + 1).append(bucket).append('\u0000').append(key)
+                .toString();
+    }
+
+    private final class Shard {
+        private final LinkedHashMap<String, Entry> map;
+
+        private Shard(final long maxEntries) {
+            this.map = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override protected boolean removeEldestEntry(Map.Entry<String, VClockCache.Entry> eldest) {
+                    if (size() > maxEntries) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+}
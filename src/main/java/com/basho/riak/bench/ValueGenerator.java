@@ -0,0 +1,110 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static com.basho.riak.bench.ShimOptions.intValue;
+
+import java.util.Random;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * Makes values in the shim, from a basho_bench style
+ * <code>value_generator</code> spec: <code>{fixed_bin, Size}</code> or
+ * <code>{random_bin, Min, Max}</code> (<code>uniform_bin</code> is accepted as
+ * a synonym).
+ * <p>
+ * Values are random bytes made once, up front, and shared: a fixed_bin is a
+ * single value, a random_bin is a set of up to {@link #MAX_VALUES} values of
+ * sizes uniform over the range, at most {@link #MAX_BYTES} in all, picked
+ * from by a hash of the seed. Nothing is allocated per request.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class ValueGenerator {
+
+    static final int MAX_VALUES = 64;
+    static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    private final byte[][] values;
+    private final String spec;
+
+    private ValueGenerator(byte[][] values, String spec) {
+        this.values = values;
+        this.spec = spec;
+    }
+
+    /**
+     * @param seed
+     * @return the value for <code>seed</code>, shared, don't change it
+     */
+    public byte[] value(long seed) {
+        if (values.length == 1) {
+            return values[0];
+        }
+        return values[(int) KeyGenerator.mod(KeyGenerator.mix(seed), values.length)];
+    }
+
+    /**
+     * @param spec
+     * @return the generator for <code>spec</code>
+     */
+    public static ValueGenerator from(OtpErlangObject spec) {
+        if (!(spec instanceof OtpErlangTuple) || ((OtpErlangTuple) spec).arity() < 2) {
+            throw new IllegalArgumentException("bad value generator " + spec);
+        }
+
+        final OtpErlangTuple tuple = (OtpErlangTuple) spec;
+        final String name = ((OtpErlangAtom) tuple.elementAt(0)).atomValue();
+        final Random random = new Random();
+
+        if ("fixed_bin".equals(name)) {
+            return new ValueGenerator(new byte[][] { randomBytes(random, Math.max(0, intValue(tuple.elementAt(1)))) },
+                                      spec.toString());
+        }
+
+        if (("random_bin".equals(name) || "uniform_bin".equals(name)) && tuple.arity() == 3) {
+            final int min = Math.max(0, intValue(tuple.elementAt(1)));
+            final int max = Math.max(min, intValue(tuple.elementAt(2)));
+            final int count = (int) Math.max(1, Math.min(MAX_VALUES, MAX_BYTES / Math.max(1, max)));
+            final byte[][] values = new byte[count][];
+
+            for (int i = 0; i < count; i++) {
+                values[i] = randomBytes(random, min + random.nextInt(max - min + 1));
+            }
+            return new ValueGenerator(values, spec.toString());
+        }
+
+        throw new IllegalArgumentException("unknown value generator " + spec);
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return spec;
+    }
+}
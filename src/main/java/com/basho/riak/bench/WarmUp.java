@@ -0,0 +1,297 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static com.basho.riak.bench.OtpMessageHelper.prop;
+
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+
+/**
+ * Runs a synthetic get/put/update workload through real {@link ClientShim}s
+ * until the JIT has compiled the hot paths, so the first minutes of a
+ * benchmark aren't spent measuring the interpreter. Requests are encoded as
+ * they arrive from basho_bench and fed to the shim's own decode, dispatch
+ * and reply code, and every reply is encoded as it would be for the wire.
+ * <p>
+ * Compilation has settled once the JIT spends less than 1% of a second
+ * compiling for {@link WarmUpSpec#getSettle()} seconds in a row. Then, or
+ * at {@link WarmUpSpec#getMaxMs()} whatever happens, the shims are closed
+ * and <code>{Self, warmed_up}</code> is sent to the factory.
+ * </p>
+ * 
+ * @author russell
+ * 
+ */
+public class WarmUp implements Runnable {
+
+    static final String WARMED_UP = "warmed_up";
+
+    private static final long INTERVAL_MS = 1000;
+    private static final long RECEIVE_MS = 5000;
+    private static final int VERSION = 131;
+    private static final byte[] BUCKET = "bench_shim_warmup".getBytes();
+
+    private final OtpNode node;
+    private final OtpMbox mbox;
+    private final OtpErlangPid factory;
+    private final WarmUpSpec spec;
+    private final CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+    private final AtomicLong ops = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+    private volatile boolean running = true;
+    private volatile boolean done = false;
+    private volatile boolean settled = false;
+    private volatile long start;
+    private volatile long elapsedMs;
+    private volatile long compileMs;
+
+    /**
+     * @param node
+     *            where to create the warm-up shims
+     * @param factory
+     *            the factory to tell when it's over
+     * @param spec
+     */
+    public WarmUp(OtpNode node, OtpErlangPid factory, WarmUpSpec spec) {
+        this.node = node;
+        this.mbox = node.createMbox();
+        this.factory = factory;
+        this.spec = spec;
+    }
+
+    /**
+     * @return this warm-up's pid, the sender of <code>warmed_up</code>
+     */
+    public OtpErlangPid self() {
+        return mbox.self();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        System.out.println("Warming up with " + spec);
+        start = System.currentTimeMillis();
+        final List<ClientShim> shims = new ArrayList<ClientShim>();
+        final List<Thread> workers = new ArrayList<Thread>();
+
+        try {
+            final ClientConfig config = new ClientConfig(host(), spec.getPort(), spec.getTransport(), 16);
+
+            for (int i = 0; i < spec.getConcurrency(); i++) {
+                final OtpMbox sink = node.createMbox();
+                final ClientShim shim = new ClientShim(node.createMbox(), config);
+                shims.add(shim);
+                final byte[][] requests = requests(sink.self());
+                final Thread worker = new Thread(new Runnable() {
+                    public void run() {
+                        drive(shim, sink, requests);
+                    }
+                }, "warmup-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+            }
+
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            settled = waitForJit();
+        } catch (IOException e) {
+            System.out.println("Warm-up failed, no shim for " + spec + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+
+            for (Thread worker : workers) {
+                try {
+                    worker.join(RECEIVE_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (ClientShim shim : shims) {
+                shim.close();
+            }
+            elapsedMs = System.currentTimeMillis() - start;
+            done = true;
+            System.out.println("Warmed up in " + elapsedMs + "ms, " + ops.get() + " ops, "
+                    + (settled ? "compilation settled" : "compilation still going"));
+            mbox.send(factory, new OtpErlangTuple(new OtpErlangObject[] { mbox.self(), new OtpErlangAtom(WARMED_UP) }));
+            mbox.close();
+        }
+    }
+
+    /**
+     * @return true if compilation settled, false if max ran out first (or
+     *         the JVM doesn't say how long it spends compiling)
+     * @throws InterruptedException
+     */
+    private boolean waitForJit() throws InterruptedException {
+        final boolean monitored = jit != null && jit.isCompilationTimeMonitoringSupported();
+        long lastCompileMs = monitored ? jit.getTotalCompilationTime() : 0;
+        int quiet = 0;
+
+        while (true) {
+            Thread.sleep(INTERVAL_MS);
+            final long elapsed = System.currentTimeMillis() - start;
+
+            if (monitored) {
+                final long total = jit.getTotalCompilationTime();
+                // less than 1% of the interval spent compiling
+                quiet = (total - lastCompileMs) * 100 < INTERVAL_MS ? quiet + 1 : 0;
+                compileMs = total;
+                lastCompileMs = total;
+
+                if (quiet >= spec.getSettle() && elapsed >= spec.getMinMs()) {
+                    return true;
+                }
+            }
+            if (elapsed >= spec.getMaxMs()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Feed <code>shim</code> requests round and round until the warm-up is
+     * over, taking each reply off <code>sink</code> and encoding it
+     * 
+     * @param shim
+     * @param sink
+     *            where the shim replies
+     * @param requests
+     */
+    private void drive(final ClientShim shim, final OtpMbox sink, final byte[][] requests) {
+        int i = 0;
+
+        try {
+            while (running) {
+                shim.handle(new OtpInputStream(requests[i]));
+                final OtpErlangObject reply = sink.receive(RECEIVE_MS);
+
+                if (reply == null) {
+                    missed.incrementAndGet();
+                } else {
+                    new OtpOutputStream(reply);
+                }
+                ops.incrementAndGet();
+                i = (i + 1) % requests.length;
+            }
+        } catch (OtpErlangDecodeException e) {
+            e.printStackTrace();
+        } catch (OtpErlangExit e) {
+            // the shim is closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * @param from
+     * @return a get, put, get and update of every key, as external format
+     *         bytes from <code>from</code>
+     */
+    private byte[][] requests(final OtpErlangPid from) {
+        final byte[][] requests = new byte[spec.getKeys() * 4][];
+        final byte[] value = new byte[spec.getValueSize()];
+        int n = 0;
+
+        for (int k = 0; k < spec.getKeys(); k++) {
+            final byte[] key = Integer.toString(k).getBytes();
+            requests[n++] = request(from, Op.GET, key, null);
+            requests[n++] = request(from, Op.PUT, key, value);
+            requests[n++] = request(from, Op.GET, key, null);
+            requests[n++] = request(from, Op.UPDATE, key, value);
+        }
+        return requests;
+    }
+
+    /**
+     * @return the external format bytes of <code>{From, {Op, Args}}</code>
+     */
+    private static byte[] request(final OtpErlangPid from, final Op op, final byte[] key, final byte[] value) {
+        final List<OtpErlangObject> args = new ArrayList<OtpErlangObject>();
+        args.add(arg("bucket", new OtpErlangBinary(BUCKET)));
+        args.add(arg("key", new OtpErlangBinary(key)));
+        args.add(arg("r", new OtpErlangLong(2)));
+
+        if (value != null) {
+            args.add(arg("value", new OtpErlangBinary(value)));
+            args.add(arg("w", new OtpErlangLong(2)));
+            args.add(arg("dw", new OtpErlangLong(0)));
+        }
+
+        final OtpErlangTuple payload = new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom(op.getName()),
+                                                                                 new OtpErlangList(args.toArray(new OtpErlangObject[args.size()])) });
+        final OtpOutputStream out = new OtpOutputStream();
+        out.write1(VERSION);
+        new OtpErlangTuple(new OtpErlangObject[] { from, payload }).encode(out);
+        return out.toByteArray();
+    }
+
+    private static OtpErlangTuple arg(final String name, final OtpErlangObject value) {
+        return new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom(name), value });
+    }
+
+    /**
+     * @return the memory transport gets a store of its own
+     */
+    private String host() {
+        return spec.getTransport() == Transport.MEMORY ? "warmup" : spec.getHost();
+    }
+
+    /**
+     * @return true once the warm-up is over and the shims are closed
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return <code>[{done, Bool}, {settled, Bool}, {elapsed_ms, N}, {ops, N}, {missed, N}, {compile_ms, N}]</code>
+     */
+    public OtpErlangList stats() {
+        final long elapsed = done ? elapsedMs : start == 0 ? 0 : System.currentTimeMillis() - start;
+        return new OtpErlangList(new OtpErlangObject[] {
+                new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("done"), new OtpErlangAtom(done) }),
+                new OtpErlangTuple(new OtpErlangObject[] { new OtpErlangAtom("settled"), new OtpErlangAtom(settled) }),
+                prop("elapsed_ms", elapsed), prop("ops", ops.get()), prop("missed", missed.get()),
+                prop("compile_ms", compileMs) });
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+/**
+ * How {@link WarmUp} should drive the shim before the factory takes work,
+ * parsed from a command line argument of comma separated
+ * <code>name=value</code> pairs: <code>transport</code> (memory, the
+ * default, pb or http), <code>host</code> and <code>port</code> (the Riak
+ * node for pb and http, default 127.0.0.1:8087), <code>concurrency</code>
+ * (shims driven at once, default 4), <code>keys</code> (default 100),
+ * <code>value_size</code> (default 10000), <code>min</code> and
+ * <code>max</code> (seconds, default 5 and 120) and <code>settle</code>
+ * (quiet seconds in a row that mean the JIT is done, default 3). An empty
+ * spec is all defaults.
+ * 
+ * @author russell
+ * 
+ */
+public class WarmUpSpec {
+
+    private Transport transport = Transport.MEMORY;
+    private String host = "127.0.0.1";
+    private int port = 8087;
+    private int concurrency = 4;
+    private int keys = 100;
+    private int valueSize = 10000;
+    private long minMs = 5000;
+    private long maxMs = 120000;
+    private int settle = 3;
+
+    /**
+     * @return what to drive, the memory transport is in process and needs
+     *         no cluster
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the host for pb and http
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the port for pb and http
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return how many shims are driven at once, each by its own thread
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return how many distinct keys the warm-up uses
+     */
+    public int getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return the size of put and update values
+     */
+    public int getValueSize() {
+        return valueSize;
+    }
+
+    /**
+     * @return the shortest warm-up, however soon compilation settles
+     */
+    public long getMinMs() {
+        return minMs;
+    }
+
+    /**
+     * @return the longest warm-up, ready or not
+     */
+    public long getMaxMs() {
+        return maxMs;
+    }
+
+    /**
+     * @return how many quiet seconds in a row mean compilation has settled
+     */
+    public int getSettle() {
+        return settle;
+    }
+
+    /**
+     * @param spec
+     *            <code>name=value,...</code>, may be empty
+     * @return the {@link WarmUpSpec}
+     * @throws IllegalArgumentException
+     *             for an unknown name or a bad value
+     */
+    public static WarmUpSpec parse(final String spec) {
+        final WarmUpSpec warmUpSpec = new WarmUpSpec();
+
+        for (String pair : spec.split(",")) {
+            if (pair.trim().length() == 0) {
+                continue;
+            }
+            final int eq = pair.indexOf('=');
+
+            if (eq < 0) {
+                throw new IllegalArgumentException(pair + " is not name=value");
+            }
+
+            final String name = pair.substring(0, eq).trim();
+            final String value = pair.substring(eq + 1).trim();
+
+            if ("transport".equals(name)) {
+                warmUpSpec.transport = Transport.valueOf(value.toUpperCase());
+            } else if ("host".equals(name)) {
+                warmUpSpec.host = value;
+            } else if ("port".equals(name)) {
+                warmUpSpec.port = Integer.parseInt(value);
+            } else if ("concurrency".equals(name)) {
+                warmUpSpec.concurrency = Math.max(1, Integer.parseInt(value));
+            } else if ("keys".equals(name)) {
+                warmUpSpec.keys = Math.max(1, Integer.parseInt(value));
+            } else if ("value_size".equals(name)) {
+                warmUpSpec.valueSize = Math.max(0, Integer.parseInt(value));
+            } else if ("min".equals(name)) {
+                warmUpSpec.minMs = Math.max(0, Long.parseLong(value)) * 1000;
+            } else if ("max".equals(name)) {
+                warmUpSpec.maxMs = Math.max(1, Long.parseLong(value)) * 1000;
+            } else if ("settle".equals(name)) {
+                warmUpSpec.settle = Math.max(1, Integer.parseInt(value));
+            } else {
+                throw new IllegalArgumentException("unknown warm-up setting " + name);
+            }
+        }
+
+        if (warmUpSpec.minMs > warmUpSpec.maxMs) {
+            warmUpSpec.minMs = warmUpSpec.maxMs;
+        }
+        return warmUpSpec;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return String.format("WarmUpSpec [transport=%s, host=%s, port=%s, concurrency=%s, keys=%s, valueSize=%s, minMs=%s, maxMs=%s, settle=%s]",
+                             transport, host, port, concurrency, keys, valueSize, minMs, maxMs, settle);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.bench;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Drives a {@link ConcurrencyLimit} with the round trips of a simulated node
+ * that runs {@link #CORES} requests at once and queues the rest
+ * 
+ * @author russell
+ * 
+ */
+public class ConcurrencyLimitTest {
+
+    private static final int CORES = 8;
+    private static final long SERVICE_MICROS = 1000;
+
+    @Test public void aimdShrinksWhenRttGrows() throws IOException {
+        shrinksWhenRttGrows(LimitAlgorithm.AIMD);
+    }
+
+    @Test public void gradientShrinksWhenRttGrows() throws IOException {
+        shrinksWhenRttGrows(LimitAlgorithm.GRADIENT);
+    }
+
+    @Test public void aimdComesDownUnderOverload() throws IOException {
+        comesDownUnderOverload(LimitAlgorithm.AIMD);
+    }
+
+    @Test public void gradientComesDownUnderOverload() throws IOException {
+        comesDownUnderOverload(LimitAlgorithm.GRADIENT);
+    }
+
+    private static void shrinksWhenRttGrows(LimitAlgorithm algorithm) throws IOException {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(algorithm, 20, 1000);
+
+        for (int i = 0; i < 100; i++) {
+            round(limit, SERVICE_MICROS);
+        }
+        final int before = limit.getLimit();
+
+        for (int i = 0; i < 50; i++) {
+            round(limit, SERVICE_MICROS * 4);
+        }
+        assertTrue(algorithm + " limit " + limit.getLimit() + " was " + before, limit.getLimit() < before);
+    }
+
+    /**
+     * Starts far above what the node can take and probes every other window,
+     * each probe starts with a limit's worth of queued requests in flight
+     */
+    private static void comesDownUnderOverload(LimitAlgorithm algorithm) throws IOException {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(algorithm, 200, 1000, 0);
+
+        for (int i = 0; i < 300; i++) {
+            round(limit, SERVICE_MICROS);
+        }
+        assertTrue(algorithm + " base " + limit.getBaseRttMicros(), limit.getBaseRttMicros() < SERVICE_MICROS * 3 / 2);
+        assertTrue(algorithm + " limit " + limit.getLimit(), limit.getLimit() <= CORES * 4);
+    }
+
+    /**
+     * Take every free slot, then hand them all back with the round trip the
+     * node has at that concurrency
+     */
+    private static void round(ConcurrencyLimit limit, long serviceMicros) throws IOException {
+        final List<Long> admitted = new ArrayList<Long>();
+
+        try {
+            while (true) {
+                admitted.add(limit.acquire(0));
+            }
+        } catch (ConcurrencyLimit.LimitExceededException e) {
+            // full
+        }
+        final long rtt = serviceMicros * Math.max(CORES, admitted.size()) / CORES;
+
+        for (Long epoch : admitted) {
+            limit.release(epoch, rtt, true);
+        }
+    }
+}